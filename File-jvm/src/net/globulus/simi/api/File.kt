@@ -2,12 +2,10 @@ package net.globulus.simi.api
 
 import net.globulus.simi.Constants
 import net.globulus.simi.warp.Instance
-import net.globulus.simi.warp.ListInstance
-import net.globulus.simi.warp.Vm
+import net.globulus.simi.warp.VmContext
 import net.globulus.simi.warp.native.NativeClass
 import net.globulus.simi.warp.native.NativeFunction
 import net.globulus.simi.warp.native.NativeModule
-import net.globulus.simi.warp.toSimiList
 import java.io.*
 import java.io.File
 import java.nio.file.Files
@@ -27,7 +25,7 @@ class File : NativeModule {
                         "readLines" -> NativeFunction(0) {
                             try {
                                 val lines = Files.readAllLines(Paths.get(getPath(it, 0)))
-                                ListInstance(true, lines.toMutableList())
+                                newList(true, lines.toMutableList())
                             } catch (e: IOException) {
                                 raiseIoException(e)
                             }
@@ -142,8 +140,8 @@ class File : NativeModule {
 
     private fun getPath(args: List<Any?>, index: Int) = (args[index] as Instance)["path"] as String
 
-    private fun raiseIoException(e: Exception): Instance {
-        return Vm.newInstance("IoException") {
+    private fun VmContext.raiseIoException(e: Exception): Instance {
+        return newInstance("IoException") {
             fields[Constants.MESSAGE] = e.localizedMessage
         }
     }
@@ -2,7 +2,6 @@ package net.globulus.simi.api
 
 import net.globulus.simi.Constants
 import net.globulus.simi.warp.Instance
-import net.globulus.simi.warp.Vm
 import net.globulus.simi.warp.native.AsyncNativeFunction
 import net.globulus.simi.warp.native.NativeClass
 import net.globulus.simi.warp.native.NativeFunc
@@ -33,12 +32,12 @@ class Net : NativeModule {
                                 try {
                                     val response = client.execute(baseRequest)
                                     client.close()
-                                    callback(Vm.newObject {
+                                    callback(newObject {
                                         fields["code"] = response.statusLine.statusCode
                                         fields["body"] = EntityUtils.toString(response.entity)
                                     })
                                 } catch (e: Exception) {
-                                    callback(Vm.newInstance("Exception") {
+                                    callback(newInstance("Exception") {
                                         fields[Constants.MESSAGE] = e.localizedMessage
                                     })
                                 }
@@ -13,13 +13,19 @@ private var simiHome: String? = null
 fun main(args: Array<String>) {
     val sourceFile = args[0]
     var debugMode = true
+    var profile: OpCodeProfile? = null
+    var clock = Clock.SYSTEM
+    var reportsJitFailures = false
     for (i in 1 until args.size) {
         when (args[i]) {
             "-r" -> debugMode = false
+            "-p" -> profile = OpCodeProfile() // prints the pairs of ops that ran the most
+            "-v" -> clock = VirtualClock() // sleeping takes no time, for tests
+            "-j" -> reportsJitFailures = true // prints the functions that the Jit can't compile
         }
     }
     simiHome = System.getenv("SIMI_HOME")
-    runFile(sourceFile, debugMode)
+    runFile(sourceFile, debugMode, profile, clock, reportsJitFailures)
 //    } else if (args.size == 2) {
 //        if (args[0] == "-k") {
 //            runKotlin(args[1])
@@ -41,34 +47,61 @@ private fun readFile(path: String, prepend: Boolean): String {
 }
 
 @Throws(IOException::class)
-private fun runFile(path: String, debugMode: Boolean) {
-    run(readFile(path, true), debugMode)
+private fun runFile(path: String,
+                    debugMode: Boolean,
+                    profile: OpCodeProfile?,
+                    clock: Clock,
+                    reportsJitFailures: Boolean) {
+    run(path, readFile(path, true), debugMode, profile, clock, reportsJitFailures)
     //
 //    if (hadError) System.exit(65);
 //    if (hadRuntimeError) System.exit(70);
 }
 
 @Throws(IOException::class)
-private fun run(source: String, debugMode: Boolean) {
+private fun run(path: String,
+                source: String,
+                debugMode: Boolean,
+                profile: OpCodeProfile?,
+                clock: Clock,
+                reportsJitFailures: Boolean) {
     try {
         var time = System.currentTimeMillis()
-        print("Scanning and resolving imports...")
-        val lexer = Lexer(FILE_SIMI, source)
-        val tokens = mutableListOf<Token>()
-        val lo = lexer.scanTokens(true).apply {
-            simiImports.add(0, "core")
+        // Debug builds aren't cached, as they need the compiler for debugging
+        val co = (if (debugMode) null else ByteCodeCache.load(path, simiHome))?.also {
+            println("Loaded compiled code from cache... " + (System.currentTimeMillis() - time) + " ms")
+        } ?: run {
+            print("Scanning and resolving imports...")
+            val lexer = Lexer(FILE_SIMI, source)
+            val tokens = mutableListOf<Token>()
+            val lo = lexer.scanTokens(true).apply {
+                simiImports.add(0, "core")
+            }
+            val imports = mutableListOf<String>()
+            val nativeImports = mutableListOf<ByteCodeCache.NativeImport>()
+            scanImports(Paths.get("").toAbsolutePath(), lo, tokens, imports, nativeImports)
+            println(" " + (System.currentTimeMillis() - time) + " ms")
+            time = System.currentTimeMillis()
+            println("Compiling...")
+            val compiler = Compiler(debugMode)
+            compiler.compile(tokens).also {
+                println((System.currentTimeMillis() - time).toString() + " ms")
+                if (!debugMode) {
+                    ByteCodeCache.save(path, simiHome, listOf(path) + imports.filter { it.endsWith(".simi") },
+                            nativeImports, it)
+                }
+            }
         }
-        scanImports(Paths.get("").toAbsolutePath(), lo, tokens, mutableListOf())
-        println(" " + (System.currentTimeMillis() - time) + " ms")
         time = System.currentTimeMillis()
-        println("Compiling...")
-        val compiler = Compiler(debugMode)
-        val co = compiler.compile(tokens)
-        println((System.currentTimeMillis() - time).toString() + " ms")
-        time = System.currentTimeMillis()
-        val vm = Vm()
+        val vm = Vm(clock)
+        vm.opCodeProfile = profile
+        vm.reportsJitFailures = reportsJitFailures
         vm.interpret(Fiber(Closure(co)), debugMode)
         println("Running... " + (System.currentTimeMillis() - time) + " ms")
+        profile?.let {
+            println("Most frequent op pairs:")
+            println(it.report())
+        }
     } catch (e: Exception) { // handles lexer and compiler errors
         println(e.message)
     }
@@ -78,11 +111,15 @@ private fun run(source: String, debugMode: Boolean) {
 private fun scanImports(sourcePath: Path,
                         lo: Lexer.LexerOutput,
                         allTokens: MutableList<Token>,
-                        imports: MutableList<String>) {
+                        imports: MutableList<String>,
+                        loadedNativeImports: MutableList<ByteCodeCache.NativeImport>) {
     val (tokens, simiImports, nativeImports) = lo
     for (import in nativeImports) {
         convertImportToLocation(sourcePath, import,"jar", imports)?.let {
-            NativeModuleLoader.load(Paths.get(it).toUri().toURL().toString(), import.substring(import.indexOf('/') + 1), true)
+            val nativeImport = ByteCodeCache.NativeImport(Paths.get(it).toUri().toURL().toString(),
+                    import.substring(import.indexOf('/') + 1))
+            NativeModuleLoader.load(nativeImport.path, nativeImport.moduleName, true)
+            loadedNativeImports += nativeImport
         }
     }
     for (import in simiImports) {
@@ -90,7 +127,8 @@ private fun scanImports(sourcePath: Path,
             scanImports(Paths.get(it).parent,
                     Lexer(import, readFile(it, false)).scanTokens(false),
                     allTokens,
-                    imports
+                    imports,
+                    loadedNativeImports
             )
         }
     }
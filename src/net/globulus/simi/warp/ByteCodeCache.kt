@@ -0,0 +1,242 @@
+package net.globulus.simi.warp
+
+import net.globulus.simi.warp.native.NativeFunc
+import net.globulus.simi.warp.native.NativeModuleLoader
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.security.MessageDigest
+import java.util.*
+
+/**
+ * Persists compiled programs into .simic files next to their main source file, so that running a program whose
+ * sources haven't changed skips lexing, resolving imports and compiling altogether.
+ *
+ * A .simic file records the hashes of the main source file and all the Simi files it imports, along with the native
+ * modules it loads, and is only reused if all the hashes still match and it was written by the same compiler version
+ * for the same SIMI_HOME.
+ *
+ * Only release builds are cached, as debug info holds on to the compiler that produced it.
+ */
+object ByteCodeCache {
+    private const val MAGIC = 0x53494D43 // SIMC
+    private const val FORMAT_VERSION = 1
+
+    // Constant tags
+    private const val NIL = 0
+    private const val TRUE = 1
+    private const val FALSE = 2
+    private const val LONG = 3
+    private const val DOUBLE = 4
+    private const val STRING = 5
+    private const val FUNCTION = 6
+    private const val FUNCTION_REF = 7 // a function that was already written
+    private const val NATIVE = 8
+
+    class NativeImport(val path: String, val moduleName: String)
+
+    /**
+     * Loads the native modules and the compiled program cached for [sourcePath].
+     * @return null if there's no cached program or it's out of date
+     */
+    fun load(sourcePath: String, simiHome: String?): Function? {
+        val file = cacheFile(sourcePath)
+        if (!Files.exists(file)) {
+            return null
+        }
+        return try {
+            DataInputStream(BufferedInputStream(Files.newInputStream(file))).use { input ->
+                if (input.readInt() != MAGIC || input.readUTF() != environment(simiHome)) {
+                    return null
+                }
+                for (i in 0 until input.readInt()) {
+                    val path = Paths.get(input.readUTF())
+                    val hash = ByteArray(input.readInt()).also { input.readFully(it) }
+                    if (!Files.exists(path) || !hash.contentEquals(hash(path))) {
+                        return null
+                    }
+                }
+                for (i in 0 until input.readInt()) {
+                    NativeModuleLoader.load(input.readUTF(), input.readUTF(), true)
+                }
+                Reader(input).readFunction()
+            }
+        } catch (e: Exception) {
+            null // An unreadable cache is the same as a missing one, the program just gets compiled again
+        }
+    }
+
+    /**
+     * Caches the compiled [function] of the program at [sourcePath], which was compiled from the [sources] it
+     * imported, with the [nativeImports] loaded.
+     */
+    fun save(sourcePath: String,
+             simiHome: String?,
+             sources: List<String>,
+             nativeImports: List<NativeImport>,
+             function: Function
+    ) {
+        val file = cacheFile(sourcePath)
+        val bytes = ByteArrayOutputStream()
+        try {
+            DataOutputStream(bytes).use { output ->
+                output.writeInt(MAGIC)
+                output.writeUTF(environment(simiHome))
+                output.writeInt(sources.size)
+                for (source in sources) {
+                    val path = Paths.get(source)
+                    output.writeUTF(path.toAbsolutePath().toString())
+                    val hash = hash(path)
+                    output.writeInt(hash.size)
+                    output.write(hash)
+                }
+                output.writeInt(nativeImports.size)
+                for (import in nativeImports) {
+                    output.writeUTF(import.path)
+                    output.writeUTF(import.moduleName)
+                }
+                Writer(output).writeFunction(function)
+            }
+            Files.write(file, bytes.toByteArray())
+        } catch (e: Exception) {
+            // Programs whose constants can't be serialized, or whose directory can't be written to, aren't cached
+        }
+    }
+
+    private fun cacheFile(sourcePath: String): Path {
+        return Paths.get(if (sourcePath.endsWith(".simi")) sourcePath + "c" else "$sourcePath.simic")
+    }
+
+    private fun environment(simiHome: String?): String {
+        return "$FORMAT_VERSION:${Compiler.VERSION}:${OpCode.values().joinToString().hashCode()}:$simiHome"
+    }
+
+    private fun hash(path: Path): ByteArray {
+        return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path))
+    }
+
+    private class Writer(private val output: DataOutputStream) {
+        private val functions = IdentityHashMap<Function, Int>()
+
+        fun writeFunction(function: Function) {
+            functions[function] = functions.size
+            with(output) {
+                writeString(function.name)
+                writeInt(function.arity)
+                writeInt(function.upvalueCount)
+                writeInt(function.code.size)
+                write(function.code)
+                writeInt(function.constants.size)
+            }
+            for (constant in function.constants) {
+                writeValue(constant)
+            }
+            writeOptionalParams(function)
+        }
+
+        private fun writeOptionalParams(func: OptionalParamsFunc) {
+            output.writeInt(func.optionalParamsStart)
+            val defaultValues = func.defaultValues
+            output.writeInt(defaultValues?.size ?: -1)
+            defaultValues?.forEach { writeValue(it) }
+        }
+
+        private fun writeValue(value: Any) {
+            when (value) {
+                Nil -> output.writeByte(NIL)
+                true -> output.writeByte(TRUE)
+                false -> output.writeByte(FALSE)
+                is Long -> {
+                    output.writeByte(LONG)
+                    output.writeLong(value)
+                }
+                is Double -> {
+                    output.writeByte(DOUBLE)
+                    output.writeDouble(value)
+                }
+                is String -> {
+                    output.writeByte(STRING)
+                    writeString(value)
+                }
+                is Function -> {
+                    val index = functions[value]
+                    if (index != null) {
+                        output.writeByte(FUNCTION_REF)
+                        output.writeInt(index)
+                    } else {
+                        output.writeByte(FUNCTION)
+                        writeFunction(value)
+                    }
+                }
+                is NativeFunc -> {
+                    val (className, funcName) = NativeModuleLoader.nameOf(value)
+                            ?: throw IllegalArgumentException("Unknown native function $value")
+                    output.writeByte(NATIVE)
+                    writeString(className)
+                    writeString(funcName)
+                    writeOptionalParams(value)
+                }
+                else -> throw IllegalArgumentException("Can't serialize constant $value")
+            }
+        }
+
+        // writeUTF is limited to 64 KB, which long string literals can exceed
+        private fun writeString(value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            output.writeInt(bytes.size)
+            output.write(bytes)
+        }
+    }
+
+    private class Reader(private val input: DataInputStream) {
+        private val functions = mutableListOf<Function?>() // null while the function is still being read
+
+        fun readFunction(): Function {
+            val index = functions.size
+            functions += null
+            val name = readString()
+            val arity = input.readInt()
+            val upvalueCount = input.readInt()
+            val code = ByteArray(input.readInt()).also { input.readFully(it) }
+            val constants = Array(input.readInt()) { readValue() }
+            return Function(name, arity, upvalueCount, code, constants, null).also {
+                readOptionalParams(it)
+                functions[index] = it
+            }
+        }
+
+        private fun readOptionalParams(func: OptionalParamsFunc) {
+            func.optionalParamsStart = input.readInt()
+            val size = input.readInt()
+            func.defaultValues = if (size == -1) null else Array(size) { readValue() }
+        }
+
+        private fun readValue(): Any {
+            return when (val tag = input.readByte().toInt()) {
+                NIL -> Nil
+                TRUE -> true
+                FALSE -> false
+                LONG -> input.readLong()
+                DOUBLE -> input.readDouble()
+                STRING -> readString()
+                FUNCTION -> readFunction()
+                FUNCTION_REF -> functions[input.readInt()]
+                        ?: throw IllegalStateException("Function refers to itself in its constants")
+                NATIVE -> {
+                    val className = readString()
+                    val funcName = readString()
+                    val func = NativeModuleLoader.resolve(className, funcName)
+                            ?: throw IllegalStateException("Can't resolve native function $className.$funcName")
+                    func.also { readOptionalParams(it) }
+                }
+                else -> throw IllegalStateException("Unknown constant tag $tag")
+            }
+        }
+
+        private fun readString(): String {
+            val bytes = ByteArray(input.readInt()).also { input.readFully(it) }
+            return String(bytes, Charsets.UTF_8)
+        }
+    }
+}
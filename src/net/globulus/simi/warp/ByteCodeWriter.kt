@@ -0,0 +1,91 @@
+package net.globulus.simi.warp
+
+/**
+ * The growable byte array a [Compiler] emits byte code into. Operands are written in place, in the big-endian order
+ * that [decode] reads them in, so emitting neither boxes the bytes nor allocates a buffer per operand.
+ *
+ * Jumps whose destination isn't known yet are emitted with a placeholder operand, and the position of that operand
+ * is the label that [patchInt] later writes the destination to.
+ */
+internal class ByteCodeWriter {
+    private var bytes = ByteArray(INITIAL_SIZE)
+
+    var size = 0
+        private set
+
+    operator fun get(index: Int) = bytes[index]
+
+    operator fun set(index: Int, byte: Byte) {
+        bytes[index] = byte
+    }
+
+    fun put(byte: Byte): Int {
+        ensureCapacity(1)
+        bytes[size++] = byte
+        return 1
+    }
+
+    fun put(opCode: OpCode) = put(opCode.byte)
+
+    fun put(byteArray: ByteArray): Int {
+        ensureCapacity(byteArray.size)
+        byteArray.copyInto(bytes, size)
+        size += byteArray.size
+        return byteArray.size
+    }
+
+    fun putInt(i: Int): Int {
+        ensureCapacity(Int.SIZE_BYTES)
+        size += Int.SIZE_BYTES
+        patchInt(size - Int.SIZE_BYTES, i)
+        return Int.SIZE_BYTES
+    }
+
+    fun putLong(l: Long): Int {
+        putInt((l ushr 32).toInt())
+        putInt(l.toInt())
+        return Long.SIZE_BYTES
+    }
+
+    fun putDouble(d: Double) = putLong(d.toRawBits())
+
+    /**
+     * Emits an int operand whose value is only known later.
+     * @return the label to [patchInt] the value to
+     */
+    fun putPlaceholder(): Int {
+        putInt(0)
+        return size - Int.SIZE_BYTES
+    }
+
+    /**
+     * Overwrites the int operand at [label] with [i].
+     */
+    fun patchInt(label: Int, i: Int) {
+        bytes[label] = (i shr 24).toByte()
+        bytes[label + 1] = (i shr 16).toByte()
+        bytes[label + 2] = (i shr 8).toByte()
+        bytes[label + 3] = i.toByte()
+    }
+
+    /**
+     * Discards the last [count] bytes.
+     */
+    fun rollBack(count: Int) {
+        size -= count
+    }
+
+    fun copyOfRange(from: Int, to: Int) = bytes.copyOfRange(from, to)
+
+    fun toByteArray() = bytes.copyOf(size)
+
+    private fun ensureCapacity(count: Int) {
+        if (size + count > bytes.size) {
+            bytes = bytes.copyOf(maxOf(bytes.size * 2, size + count))
+        }
+    }
+
+    companion object {
+        private const val INITIAL_SIZE = 256
+    }
+}
@@ -1,19 +1,58 @@
 package net.globulus.simi.warp
 
 import net.globulus.simi.warp.debug.CodePointer
-import java.nio.ByteBuffer
 
-class CallFrame(val closure: Closure,
-                val sp: Int
+/**
+ * Frames are pooled in the slots of their fiber's frame array, so a call reuses the frame a previous call at the
+ * same depth left behind by [reset]ting it instead of allocating a new one.
+ */
+class CallFrame(closure: Closure,
+                sp: Int,
+                stackLimit: Int, // the stack is kept at least this large while the frame runs
+                procEnd: Int = NO_PROC // for proc bodies, the location of the PROC instruction that ends them
 ) {
-    val buffer: ByteBuffer = ByteBuffer.wrap(closure.function.code)
-    val name = closure.function.name
+    var closure = closure
+        private set
+    var sp = sp
+        private set
+    var stackLimit = stackLimit
+        private set
+    var procEnd = procEnd
+        private set
+    internal var function = closure.function
+        private set
+    private var instructions = function.instructions
+    var code: IntArray = instructions.code
+        private set
+    var constants: Array<Any> = instructions.constants
+        private set
+    internal var caches = instructions.caches
+        private set
+    var ip = 0
+    var discardsResult = false // set for calls whose result the code being run doesn't expect, e.g, setters
+    val name get() = function.name
+
+    internal fun reset(closure: Closure, sp: Int, stackLimit: Int, procEnd: Int) {
+        this.closure = closure
+        this.sp = sp
+        this.stackLimit = stackLimit
+        this.procEnd = procEnd
+        function = closure.function
+        instructions = function.instructions
+        code = instructions.code
+        constants = instructions.constants
+        caches = instructions.caches
+        ip = 0
+        discardsResult = false
+    }
+
+    internal val bytePosition: Int get() = instructions.byteOffset(ip)
 
     internal fun getCurrentCodePoint(): CodePointer {
         return closure.function.debugInfo?.let {
             var pointer: CodePointer? = null
-            val pos = buffer.position()
-            for ((k, v) in closure.function.debugInfo.lines.entries.sortedBy { it.value }) {
+            val pos = bytePosition
+            for ((k, v) in it.lines.entries.sortedBy { it.value }) {
                 if (v > pos) {
                     if (pointer == null) {
                         pointer = k
@@ -29,4 +68,8 @@ class CallFrame(val closure: Closure,
     override fun toString(): String {
         return "[${getCurrentCodePoint()}] in ${closure.function.name}"
     }
-}
\ No newline at end of file
+
+    companion object {
+        const val NO_PROC = -1
+    }
+}
@@ -0,0 +1,48 @@
+package net.globulus.simi.warp
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.Condition
+
+/**
+ * The time source of a [Vm]'s [Scheduler], which decides when sleeping fibers wake up.
+ */
+interface Clock {
+    /**
+     * The current time in milliseconds, relative to an arbitrary origin.
+     */
+    val now: Long
+
+    /**
+     * Waits for [condition] to be signalled, for at most [millis] unless it's null.
+     */
+    fun await(condition: Condition, millis: Long?)
+
+    companion object {
+        val SYSTEM: Clock = object : Clock {
+            override val now get() = System.nanoTime() / 1_000_000
+
+            override fun await(condition: Condition, millis: Long?) {
+                if (millis == null) {
+                    condition.await()
+                } else {
+                    condition.await(millis, TimeUnit.MILLISECONDS)
+                }
+            }
+        }
+    }
+}
+
+/**
+ * A clock that only moves forward when the Vm has nothing to do but wait for a sleeping fiber, at which point it
+ * jumps right to the time that fiber wakes up. Programs that sleep run without delay, and always in the same order,
+ * which makes them easy to test. Scripts run on it with the -v flag.
+ */
+class VirtualClock(override var now: Long = 0) : Clock {
+    override fun await(condition: Condition, millis: Long?) {
+        if (millis == null) {
+            condition.await()
+        } else {
+            now += millis
+        }
+    }
+}
@@ -22,7 +22,7 @@ import java.util.*
 import java.util.regex.Pattern
 
 class Compiler(val debugMode: Boolean) {
-    private lateinit var byteCode: MutableList<Byte>
+    private lateinit var byteCode: ByteCodeWriter
 
     internal lateinit var tokens: List<Token>
     private var current = 0
@@ -50,10 +50,13 @@ class Compiler(val debugMode: Boolean) {
 
     private var lastChunk: Chunk? = null
     private val chunks = mutableListOf<Chunk>()
+    // Code before this position can't be folded with the code after it, as a jump lands there or debug info refers to it
+    private var foldBarrier = 0
+    // The CLOSURE chunks that captured each local, and the offsets of their capture flags
+    private val captureFlags = IdentityHashMap<Local, MutableList<Pair<Chunk, Int>>>()
 
     private var enclosing: Compiler? = null
     private lateinit var kind: FunctionKind
-    private lateinit var fiberName: String
     // If the function being compiled was marked with "is Type", we need to verify its return statements
     private var verifyReturnType: DynamicTypeCheck? = null
 
@@ -80,7 +83,6 @@ class Compiler(val debugMode: Boolean) {
     fun compile(tokens: List<Token>): Function {
         val name = SCRIPT + System.currentTimeMillis()
         return compileFunction(tokens, name, 0, FunctionKind.SCRIPT, Lifetime.of(tokens)) {
-            fiberName = name
             compileInternal(false)
             emitReturnNil()
         }
@@ -99,7 +101,7 @@ class Compiler(val debugMode: Boolean) {
                                 lifetime: Lifetime,
                                 within: Compiler.() -> Unit
     ): Function {
-        byteCode = mutableListOf()
+        byteCode = ByteCodeWriter()
         this.tokens = tokens
         current = 0
         this.kind = kind
@@ -114,6 +116,7 @@ class Compiler(val debugMode: Boolean) {
             addAll(locals)
         }
         endScope()
+        locals.forEach { captureIfFinal(it) }
 //        printChunks(name)
         return Function(name, arity, upvalues.size, byteCode.toByteArray(), constList.toTypedArray(),
                 if (debugMode) {
@@ -157,7 +160,7 @@ class Compiler(val debugMode: Boolean) {
     }
 
     /**
-     * @return Number of discarded vars == number of emitted POPs
+     * @return Number of discarded vars, which is the number of emitted POPs if [emitPops] is set
      */
     private fun endScope(emitPops: Boolean = true, keepLocals: Boolean = false): Int {
         val popCount = discardLocals(scopeDepth, emitPops, keepLocals)
@@ -252,9 +255,11 @@ class Compiler(val debugMode: Boolean) {
         }
         val lifetime = Lifetime(declaration, null)
         val f = funcCompiler.compileFunction(tokens, name, args.size, kind, lifetime) {
-            fiberName = if (kind == FunctionKind.FIBER) name else this@Compiler.fiberName
             current = curr
-            args.forEach { declareLocal(it) }
+            for (arg in args) {
+                // A fiber is passed new arguments every time it's resumed
+                declareLocal(arg).isFinal = kind != FunctionKind.FIBER
+            }
             if (isExprFunc) {
                 updateDebugInfo(previous)
                 lifetime.end = lifetime.start
@@ -804,15 +809,16 @@ class Compiler(val debugMode: Boolean) {
                 declareLocal(name)
             }
             block(true)
-            val popCount = endScope(false)
+            val localCount = endScope(false)
             val rolledBackChunk = rollBackAndSaveLastChunk()
-            emitPopUnder(popCount)
+            // The block's value is the last expression's, so its locals are popped from under it
+            emitPopUnder(if (rolledBackChunk.chunk.opCode == POP) localCount else 0)
             if (rolledBackChunk.chunk.opCode != POP) {
                 pushLastChunk(rolledBackChunk.chunk)
                 if (rolledBackChunk.chunk.opCode == JUMP) {
                     rolledBackChunk.chunk.data[0] = byteCode.size + 1 // + 1 because the opcode will go first
                 }
-                byteCode.addAll(rolledBackChunk.data)
+                byteCode.put(rolledBackChunk.data)
             }
             true
         } else {
@@ -824,27 +830,41 @@ class Compiler(val debugMode: Boolean) {
     }
 
     /**
-     * Actually creates a list of tokens that represent if-else-ifs that are then compiled internally
+     * Compiles a when as the chain of if-else-ifs it stands for. Only the conditions are synthesized, the bodies of
+     * the clauses are compiled in place.
+     * @param isWrapped true if the when expression is being compiled in the lambda it's wrapped in
      */
-    private fun whenSomething(isExpr: Boolean) {
+    private fun whenSomething(isExpr: Boolean, isWrapped: Boolean = false) {
         val origin = previous
         val factory = Token.Factory(origin)
-        val whenTokens = mutableListOf<Token>()
         var usesTempVar = false
         val id = if (peekSequence(IDENTIFIER, LEFT_BRACE, NEWLINE)
                 || peekSequence(SELF, LEFT_BRACE, NEWLINE)
                 || peekSequence(TokenType.SUPER, LEFT_BRACE, NEWLINE)) {
             advance()
+        } else if (isExpr && !isWrapped) {
+            // The temp var can't live in the same scope as the expression, so the when is wrapped in a lambda
+            val start = current - 1
+            consumeUntilType(LEFT_BRACE)
+            val end = current + consumeNextBlock(false).size
+            current = end
+            val whenTokens = tokens.subList(start, end) + Token.copying(tokens[end - 1], EOF)
+            compileAsCalledLambdaWithSingleReturn(whenTokens, 1) {
+                advance() // the when
+                whenSomething(isExpr = true, isWrapped = true)
+            }
+            return
         } else {
             usesTempVar = true
             val tempId = factory.named(nextImplicitVarName("when"))
-            whenTokens += listOf(tempId, factory.ofType(EQUAL))
-            whenTokens += consumeUntilType(LEFT_BRACE)
-            whenTokens += factory.ofType(NEWLINE)
+            compileNested(mutableListOf(tempId, factory.ofType(EQUAL)).apply {
+                addAll(consumeUntilType(LEFT_BRACE))
+                add(factory.ofType(NEWLINE))
+            }, false)
             tempId
         }
-        var first = true
         var wroteElse = false
+        val elseJumps = mutableListOf<Chunk>()
         consume(LEFT_BRACE, "Expect a '{' after when")
         consume(NEWLINE, "Expect a newline after when '{'")
         val consumeConditionBlock: () -> List<Token> = if (isExpr) {
@@ -862,13 +882,12 @@ class Compiler(val debugMode: Boolean) {
             matchAllNewlines()
             if (match(ELSE)) {
                 wroteElse = true
-                whenTokens += previous
-                whenTokens += consumeNextBlock(isExpr)
+                whenBody(origin, isExpr)
             } else if (wroteElse) {
                 // We could just break when we encountered a break, but that's make for a lousy compiler
                 throw error(previous, "'else' must be the last clause in a 'when' block")
             } else {
-                var ifToken: Token? = null
+                val conditionTokens = mutableListOf<Token>()
                 do {
                     val op = if (match(IS, ISNOT, IN, NOTIN, IF)) {
                         previous
@@ -876,49 +895,49 @@ class Compiler(val debugMode: Boolean) {
                         Token.copying(origin, EQUAL_EQUAL)
                     }
 
-                    // Emit the beginning of the statement if it hasn't been already
-                    if (ifToken == null) {
-                        ifToken = Token.copying(op, IF)
-                        if (first) {
-                            first = false
-                        } else {
-                            whenTokens += Token.copying(ifToken, ELSE)
-                        }
-                        whenTokens += ifToken!!
-                    }
-
                     // If the op type is IF, we'll just evaluate what comes after it,
                     // otherwise it's a check against the id.
                     if (op.type != IF) {
-                        whenTokens += id
-                        whenTokens += op
+                        conditionTokens += id
+                        conditionTokens += op
                     }
 
                     // Consume the rest of the condition
-                    whenTokens += consumeConditionBlock()
+                    conditionTokens += consumeConditionBlock()
 
                     // If we've found an or, we just take it as-is
                     if (match(OR)) {
-                        whenTokens += previous
+                        conditionTokens += previous
                     }
                 } while (!conditionAtEndBlock())
 
-                // Consume the statement
-                whenTokens += consumeNextBlock(isExpr)
+                compileNested(conditionTokens, true)
+                val ifChunk = emitJump(JUMP_IF_FALSE)
+                emitCode(POP)
+                whenBody(origin, isExpr)
+                elseJumps += emitJump(JUMP)
+                patchJump(ifChunk)
+                emitCode(POP)
             }
             matchAllNewlines()
         }
         consume(RIGHT_BRACE, "Expect '}' at the end of when")
-        if (isExpr && usesTempVar) {
-            whenTokens += factory.ofType(EOF)
-            compileAsCalledLambdaWithSingleReturn(whenTokens, 1) {
-                compileInternal(true)
-            }
+        if (isExpr && !wroteElse) {
+            throw error(origin, "A when expression must have an else!")
+        }
+        for (jump in elseJumps) {
+            patchJump(jump)
+        }
+        if (usesTempVar && !isWrapped) {
+            discardLastLocal(true) // pop the temp var
+        }
+    }
+
+    private fun whenBody(opener: Token, isExpr: Boolean) {
+        if (isExpr && match(EQUAL)) {
+            expression()
         } else {
-            compileNested(whenTokens, isExpr)
-            if (usesTempVar) {
-                discardLastLocal(true) // pop the temp var
-            }
+            compileIfBody(opener, isExpr)
         }
     }
 
@@ -943,52 +962,78 @@ class Compiler(val debugMode: Boolean) {
         if (peek.type != LEFT_BRACE) {
             throw error(opener, "A for loop must include a block.")
         }
-        val blockTokens = consumeNextBlock(false)
-        var elseBlockTokens: List<Token>? = null
-        if (match(ELSE)) {
-            if (peek.type != LEFT_BRACE) {
-                throw error(peek, "The for loop else must include a block.")
-            }
-            elseBlockTokens = consumeNextBlock(false)
-        }
-        val tokens = mutableListOf<Token>().apply {
-            val iterator = factory.named(nextImplicitVarName("iterator"))
-            val eq = factory.ofType(EQUAL)
-            val lp = factory.ofType(LEFT_PAREN)
-            val rp = factory.ofType(RIGHT_PAREN)
-            val dot = factory.ofType(DOT)
-            val nl = factory.ofType(NEWLINE)
-            val ifToken = factory.ofType(IF)
-            val eqEq = factory.ofType(EQUAL_EQUAL)
-            val nil = factory.ofType(NIL)
-            val checkTokens = mutableListOf<Token>()
+        // The loop is compiled as if it were:
+        // iterator = (iterable).iterate()
+        // while iterator != nil {
+        //     ids = iterator.next()
+        //     if ids == nil break
+        //     ...block...
+        // }
+        // if iterator == nil ...else block...
+        // The block is compiled in place, only the code around it is synthesized.
+        val iterator = factory.named(nextImplicitVarName("iterator"))
+        val eq = factory.ofType(EQUAL)
+        val lp = factory.ofType(LEFT_PAREN)
+        val rp = factory.ofType(RIGHT_PAREN)
+        val dot = factory.ofType(DOT)
+        val nl = factory.ofType(NEWLINE)
+        compileNested(mutableListOf(iterator, eq, lp).apply {
+            addAll(iterableTokens)
+            addAll(listOf(rp, dot, factory.named(Constants.ITERATE), lp, rp, nl))
+        }, false)
+
+        val start = jumpTarget()
+        loops.push(ActiveLoop(start, scopeDepth))
+        variable(iterator.lexeme)
+        emitCode(OpCode.NIL)
+        emitCode(EQ)
+        emitCode(INVERT)
+        val skipChunk = emitJump(JUMP_IF_FALSE)
+        emitCode(POP)
+        consume(LEFT_BRACE, "Expect '{' to start the for loop block.")
+        beginScope()
+        compileNested(mutableListOf<Token>().apply {
+            addAll(assignmentTokens)
+            addAll(listOf(eq, iterator, dot, factory.named(Constants.NEXT), lp, rp, nl, factory.ofType(IF)))
             for ((i, id) in ids.withIndex()) {
                 if (i > 0) {
-                    checkTokens.add(factory.ofType(AND))
-                }
-                checkTokens.addAll(listOf(id, eqEq, nil))
-            }
-            addAll(listOf(iterator, eq, lp)); addAll(iterableTokens); addAll(listOf(rp, dot,
-                factory.named(Constants.ITERATE), lp, rp, nl))
-            if (elseBlockTokens != null) {
-                addAll(listOf(ifToken, iterator, eqEq, nil))
-                addAll(elseBlockTokens)
-                add(factory.ofType(ELSE))
-            }
-            addAll(listOf(factory.ofType(WHILE), iterator, factory.ofType(BANG_EQUAL), nil))
-            for ((i, blockToken) in blockTokens.withIndex()) {
-                add(blockToken)
-                if (i == 0) {
-                    add(nl)
-                    addAll(assignmentTokens)
-                    addAll(listOf(eq, iterator, dot, factory.named(Constants.NEXT), lp, rp, nl, ifToken))
-                    addAll(checkTokens)
-                    add(factory.ofType(BREAK))
-                    add(nl)
+                    add(factory.ofType(AND))
                 }
+                addAll(listOf(id, factory.ofType(EQUAL_EQUAL), factory.ofType(NIL)))
             }
+            addAll(listOf(factory.ofType(BREAK), nl))
+        }, false)
+        block(false)
+        endScope()
+        emitJump(JUMP, start)
+        val end = patchJump(skipChunk)
+        val breaksToPatch = loops.pop().breaks
+        // Set to jump 1 after end to skip the final POP as it already happened in the loop body
+        val skip = end + 1
+        for (pos in breaksToPatch) {
+            pos.data[1] = skip
+            byteCode.patchInt(pos.data[0] as Int, skip)
+        }
+        emitCode(POP)
+
+        matchAllNewlines()
+        if (match(ELSE)) {
+            // The iterator is only nil after the loop if there was nothing to iterate over, as the loop otherwise
+            // ends with a break
+            if (peek.type != LEFT_BRACE) {
+                throw error(peek, "The for loop else must include a block.")
+            }
+            variable(iterator.lexeme)
+            emitCode(OpCode.NIL)
+            emitCode(EQ)
+            val elseChunk = emitJump(JUMP_IF_FALSE)
+            emitCode(POP)
+            statement()
+            val elseSkip = emitJump(JUMP)
+            patchJump(elseChunk)
+            emitCode(POP)
+            patchJump(elseSkip)
         }
-        compileNested(tokens, false)
         // Remove the iterator as it isn't needed anymore
         discardLastLocal(true)
     }
@@ -1007,10 +1052,9 @@ class Compiler(val debugMode: Boolean) {
         emitReturn(false) { }
         // After return is emitted, we need to close the scope, so we emit the number of additional
         // instructions to interpret before we actually return from call frame
-        val pos = byteCode.size
-        byteCode.putInt(0)
+        val label = byteCode.putPlaceholder()
         val popCount = discardLocals(scopeDepth, emitPops = true, keepLocals = true)
-        byteCode.setInt(popCount, pos)
+        byteCode.patchInt(label, popCount)
     }
 
     private fun yieldStatement() {
@@ -1020,22 +1064,23 @@ class Compiler(val debugMode: Boolean) {
     }
 
     private fun doSomething() {
-        // First we need to determine if it's a do, do-else or do-while
+        // First we need to determine if it's a do, do-else or do-while, then go back and compile the block in place
         val curr = current
         if (peek.type == LEFT_BRACE) {
-            val tokens = consumeNextBlock(false)
-            if (match(WHILE)) { // TODO improve performance by reusing the scanned tokens above
-                current = curr
+            consumeNextBlock(false)
+            val isDoWhile = check(WHILE)
+            current = curr
+            if (isDoWhile) {
                 doWhileStatement()
             } else {
-                doBlock(tokens)
+                doBlock(false)
             }
         }
     }
 
     private fun doWhileStatement() {
         val skipPop = emitJump(JUMP)
-        val start = byteCode.size
+        val start = jumpTarget()
         emitCode(POP)
         patchJump(skipPop)
         loops.push(ActiveLoop(start, scopeDepth))
@@ -1045,28 +1090,28 @@ class Compiler(val debugMode: Boolean) {
         emitCode(INVERT) // Cuz we're lazy and don't want to implement JUMP_IF_TRUE
         emitJump(JUMP_IF_FALSE, start)
         emitCode(POP)
-        val end = byteCode.size
+        val end = jumpTarget()
         val breaksToPatch = loops.pop().breaks
         for (pos in breaksToPatch) {
             pos.data[1] = end
-            byteCode.setInt(end, pos.data[0] as Int)
+            byteCode.patchInt(pos.data[0] as Int, end)
         }
     }
 
-    private fun doBlock(tokens: List<Token>?) {
+    private fun doBlock(isExpr: Boolean) {
         loops.push(DoBlock(scopeDepth))
-        val isExpr = tokens == null
         if (isExpr) {
             expressionOrExpressionBlock { expression() }
         } else {
-            compileNested(tokens!!, false)
+            declaration()
+            matchAllNewlines()
         }
         val breakJumpLoc: Int
         if (match(ELSE)) {
             consume(LEFT_BRACE, "Expect '{' to start else clause of do-else block.")
             val elseSkip = emitJump(JUMP)
             emitCode(OpCode.NIL) // need to push this to have something to pop below if no breaks were reached
-            breakJumpLoc = byteCode.size
+            breakJumpLoc = jumpTarget()
             if (isExpr) {
                 current-- // roll back to include the { for the expressionOrExpressionBlock call
                 expressionOrExpressionBlock(listOf(Constants.IT)) { expression() }
@@ -1078,17 +1123,17 @@ class Compiler(val debugMode: Boolean) {
             }
             patchJump(elseSkip)
         } else {
-            breakJumpLoc = byteCode.size
+            breakJumpLoc = jumpTarget()
         }
         val breaksToPatch = loops.pop().breaks
         for (pos in breaksToPatch) {
             pos.data[1] = breakJumpLoc
-            byteCode.setInt(breakJumpLoc, pos.data[0] as Int)
+            byteCode.patchInt(pos.data[0] as Int, breakJumpLoc)
         }
     }
 
     private fun whileStatement() {
-        val start = byteCode.size
+        val start = jumpTarget()
         loops.push(ActiveLoop(start, scopeDepth))
         expression()
         val skipChunk = emitJump(JUMP_IF_FALSE)
@@ -1101,7 +1146,7 @@ class Compiler(val debugMode: Boolean) {
         val skip = end + 1
         for (pos in breaksToPatch) {
             pos.data[1] = skip
-            byteCode.setInt(skip, pos.data[0] as Int)
+            byteCode.patchInt(pos.data[0] as Int, skip)
         }
         emitCode(POP)
     }
@@ -1225,9 +1270,15 @@ class Compiler(val debugMode: Boolean) {
                     if (lastChunk?.opCode == GET_UPVALUE || lastChunk?.opCode == GET_LOCAL) {
                         reassignment(equals) // Set local/upvalue
                     } else { // Declare local
-                        declareLocal(lastChunk!!.data[1] as String, isConst)
+                        val local = declareLocal(lastChunk!!.data[1] as String, isConst)
                         rollBackLastChunk()
+                        local.isInitialized = false
+                        val chunkCount = chunks.size
                         firstNonAssignment(true) // push the value on the stack
+                        local.isInitialized = true
+                        if (local.isConst && chunks.size == chunkCount + 1) {
+                            local.value = literalValue(lastChunk!!) // lets the expressions that use it be folded
+                        }
                     }
                 }
             } else {
@@ -1254,6 +1305,7 @@ class Compiler(val debugMode: Boolean) {
             GET_UPVALUE -> lastChunk!!.data[1] as Int
             else -> throw error(equals, "Assigning to undeclared var!")
         }
+        val local = if (variable is Local) variable else upvalues[variable as Int].origin
         val isConst = if (variable is Local) variable.isConst else upvalues[variable as Int].isConst
         if (isConst) {
             throw error(previous, "Can't assign to a const!")
@@ -1262,6 +1314,7 @@ class Compiler(val debugMode: Boolean) {
             throw error(equals, "Can't reassign with _=, use = instead.")
         } else if (equals.type == QUESTION_QUESTION_EQUAL || equals.type == QUESTION_BANG_EQUAL) {
             nilOrExceptionCoalescenceWithKnownLeft(equals) { firstNonAssignment(true) }
+            local.isFinal = false
         } else {
             if (equals.type == EQUAL) {
                 rollBackLastChunk() // It'll just be a set, compound-assigns reuse the already emitted GET_LOCAL
@@ -1270,6 +1323,7 @@ class Compiler(val debugMode: Boolean) {
             if (equals.type != EQUAL) {
                 emitCode(opCodeForCompoundAssignment(equals.type))
             }
+            local.isFinal = false
         }
         emitSet(variable)
     }
@@ -1282,22 +1336,30 @@ class Compiler(val debugMode: Boolean) {
     private fun or(irsoa: Boolean) {
         and(irsoa)
         while (match(OR)) {
+            val left = lastChunk
+            val barrier = foldBarrier
             val elseChunk = emitJump(JUMP_IF_FALSE)
             val endChunk = emitJump(JUMP)
             patchJump(elseChunk)
             emitCode(POP)
             and(irsoa)
-            patchJump(endChunk)
+            if (!foldShortCircuit(left, 5, barrier, false)) {
+                patchJump(endChunk)
+            }
         }
     }
 
     private fun and(irsoa: Boolean) {
         equality(irsoa)
         while (match(AND)) {
+            val left = lastChunk
+            val barrier = foldBarrier
             val endChunk = emitJump(JUMP_IF_FALSE)
             emitCode(POP)
             equality(irsoa)
-            patchJump(endChunk)
+            if (!foldShortCircuit(left, 4, barrier, true)) {
+                patchJump(endChunk)
+            }
         }
     }
 
@@ -1609,9 +1671,9 @@ class Compiler(val debugMode: Boolean) {
 
     private fun proc() {
         val skipChunk = emitJump(JUMP) // unconditional jump to skip over the proc body during declaration
-        val start = byteCode.size
-        doBlock(null)
-        val end = byteCode.size
+        val start = jumpTarget()
+        doBlock(true)
+        val end = jumpTarget()
         patchJump(skipChunk)
         emitProc(start, end)
     }
@@ -2021,25 +2083,15 @@ class Compiler(val debugMode: Boolean) {
 
     private val previous: Token get() = tokens[current - 1]
 
-    private fun rollBack(by: Int = 1) {
-        for (i in 0 until by) {
-            byteCode.removeAt(byteCode.size - 1)
-        }
-    }
-
     private fun rollBackLastChunk() {
-        rollBack(lastChunk!!.size)
+        byteCode.rollBack(lastChunk!!.size)
         chunks.removeAt(chunks.size - 1)
         lastChunk = if (chunks.isEmpty()) null else chunks.last()
     }
 
     private fun rollBackAndSaveLastChunk(): RolledBackChunk {
         val chunk = lastChunk!!
-        val size = byteCode.size
-        val data = mutableListOf<Byte>()
-        for (i in size - chunk.size until size) {
-            data += byteCode[i]
-        }
+        val data = byteCode.copyOfRange(byteCode.size - chunk.size, byteCode.size)
         rollBackLastChunk()
         return RolledBackChunk(chunk, data)
     }
@@ -2065,10 +2117,101 @@ class Compiler(val debugMode: Boolean) {
     }
 
     private fun emitCode(opCode: OpCode) {
+        if (foldConstants(opCode)) {
+            return
+        }
         val size = byteCode.put(opCode)
         pushLastChunk(Chunk(opCode, size))
     }
 
+    /**
+     * Evaluates [opCode] right away if the operands it would pop are all known at compile time, replacing their
+     * chunks with the result.
+     * @return true if the op was folded and mustn't be emitted
+     */
+    private fun foldConstants(opCode: OpCode): Boolean {
+        val operandCount = when (opCode) {
+            INVERT, NEGATE -> 1
+            ADD, SUBTRACT, MULTIPLY, DIVIDE, DIVIDE_INT, OpCode.MOD, LT, LE, GE, GT, EQ -> 2
+            else -> return false
+        }
+        if (chunks.size < operandCount) {
+            return false
+        }
+        val operands = chunks.subList(chunks.size - operandCount, chunks.size)
+        var end = byteCode.size
+        for (chunk in operands.asReversed()) {
+            if (chunk.pos < foldBarrier || chunk.pos + chunk.size != end) {
+                return false
+            }
+            end = chunk.pos
+        }
+        val values = operands.map { literalValue(it) ?: return false }
+        val result = if (operandCount == 1) {
+            ConstantFolder.fold(opCode, values[0])
+        } else {
+            ConstantFolder.fold(opCode, values[0], values[1])
+        } ?: return false
+        repeat(operandCount) { rollBackLastChunk() }
+        emitLiteral(result)
+        return true
+    }
+
+    /**
+     * Folds a short-circuiting and/or whose sides are both known at compile time into its result. [left] is the chunk
+     * of the left side, and [chunkCount] the number of chunks from it to the right side, inclusive.
+     * @return true if it was folded and the jumps in between are gone
+     */
+    private fun foldShortCircuit(left: Chunk?, chunkCount: Int, barrier: Int, isAnd: Boolean): Boolean {
+        val right = lastChunk ?: return false
+        if (left == null || left.pos < barrier || chunks.size < chunkCount || chunks[chunks.size - chunkCount] !== left) {
+            return false
+        }
+        val leftValue = literalValue(left) ?: return false
+        val rightValue = literalValue(right) ?: return false
+        val result = if ((leftValue == false) == isAnd) leftValue else rightValue // JUMP_IF_FALSE only jumps on false
+        repeat(chunkCount) { rollBackLastChunk() }
+        foldBarrier = barrier
+        emitLiteral(result)
+        return true
+    }
+
+    /**
+     * @return the value that [chunk] pushes if it's known at compile time, i.e, if it's a literal or gets a const that
+     * was initialized with one, or null if it isn't
+     */
+    private fun literalValue(chunk: Chunk): Any? {
+        return when (chunk.opCode) {
+            OpCode.TRUE -> true
+            OpCode.FALSE -> false
+            OpCode.NIL -> Nil
+            CONST_INT, CONST_FLOAT -> chunk.data[0]
+            CONST -> chunk.data[1] as? String
+            GET_LOCAL -> (chunk.data[1] as? Local)?.value
+            GET_UPVALUE -> (chunk.data[2] as Upvalue).origin.value
+            else -> null
+        }
+    }
+
+    private fun emitLiteral(value: Any) {
+        when (value) {
+            true -> emitCode(OpCode.TRUE)
+            false -> emitCode(OpCode.FALSE)
+            Nil -> emitCode(OpCode.NIL)
+            is Long -> emitInt(value)
+            is Double -> emitFloat(value)
+            else -> emitConst(value)
+        }
+    }
+
+    /**
+     * @return the current position, as one that a jump lands at
+     */
+    private fun jumpTarget(): Int {
+        foldBarrier = byteCode.size
+        return foldBarrier
+    }
+
     private fun emitPopUnder(count: Int) {
         var size = byteCode.put(POP_UNDER)
         size += byteCode.putInt(count)
@@ -2109,13 +2252,19 @@ class Compiler(val debugMode: Boolean) {
         var size = byteCode.put(opCode)
         val constIdx = constIndex(f)
         size += byteCode.putInt(constIdx)
+        val chunk = Chunk(opCode, size, constIdx, f)
         for (i in 0 until f.upvalueCount) {
             val upvalue = funcCompiler.upvalues[i]
-            size += byteCode.put((if (upvalue.isLocal) 1 else 0).toByte())
+            if (upvalue.isLocal) {
+                captureFlags.getOrPut(upvalue.origin) { mutableListOf() } += chunk to size
+                size += byteCode.put(CAPTURE_LOCAL.toByte())
+            } else {
+                size += byteCode.put(CAPTURE_UPVALUE.toByte())
+            }
             size += byteCode.putInt(upvalue.sp)
-            size += byteCode.putInt(constIndex(upvalue.fiberName))
         }
-        pushLastChunk(Chunk(opCode, size, constIdx, f))
+        chunk.size = size
+        pushLastChunk(chunk)
     }
 
     private fun emitClass(name: String, kind: SClass.Kind, inner: Boolean) {
@@ -2198,11 +2347,18 @@ class Compiler(val debugMode: Boolean) {
         pushLastChunk(Chunk(opCode, size, index, upvalues[index]))
     }
 
+    /**
+     * Compound assignment to a prop, e.g, @a += 2. The object, prop and the right-hand side value are on the stack:
+     * 1. UPDATE_PROP copies the object and the prop above the value.
+     * 2. GET_PROP replaces the copies with the current value of the prop, and SWAP moves it below the new value.
+     * 3. The op combines the two values, and SET_PROP stores the result back into the object.
+     */
     private fun emitUpdateProp(op: OpCode) {
-        val opCode = UPDATE_PROP
-        var size = byteCode.put(opCode)
-        size += byteCode.put(op)
-        pushLastChunk(Chunk(opCode, size, op))
+        emitCode(UPDATE_PROP)
+        emitCode(GET_PROP)
+        emitCode(SWAP)
+        emitCode(op)
+        emitCode(SET_PROP)
     }
 
     private fun emitJump(opCode: OpCode, location: Int? = null): Chunk {
@@ -2217,8 +2373,8 @@ class Compiler(val debugMode: Boolean) {
 
     private fun patchJump(chunk: Chunk): Int {
         val offset = chunk.data[0] as Int
-        val skip = byteCode.size
-        byteCode.setInt(skip, offset)
+        val skip = jumpTarget()
+        byteCode.patchInt(offset, skip)
         chunk.data[1] = skip
         return skip
     }
@@ -2319,6 +2475,7 @@ class Compiler(val debugMode: Boolean) {
             if (token.hasBreakpoint) {
                 debugInfoBreakpoints!!.add(byteCode.size)
             }
+            foldBarrier = byteCode.size
         }
     }
 
@@ -2359,9 +2516,11 @@ class Compiler(val debugMode: Boolean) {
         var popCount = 0
         var i = locals.indexOfLast { it.depth == depth }
         while (i >= 0 && locals[i].depth == depth) {
+            // Captures are only settled once the scope really ends, until then the local may still be reassigned
+            val isCapturedByValue = !keepLocals && captureIfFinal(locals[i])
+            popCount++
             if (emitPops) {
-                popCount++
-                if (locals[i].isCaptured) {
+                if (locals[i].isCaptured && !isCapturedByValue) {
                     emitCode(CLOSE_UPVALUE)
                 } else {
                     emitCode(POP)
@@ -2376,6 +2535,23 @@ class Compiler(val debugMode: Boolean) {
         return popCount
     }
 
+    /**
+     * Once the scope of [local] ends, switches the closures that captured it to copy its value if it never changed
+     * after they did. They then don't keep the function's stack slot alive through an open upvalue, and the local
+     * needn't be closed.
+     * @return true if the local was captured by value
+     */
+    private fun captureIfFinal(local: Local): Boolean {
+        val captures = captureFlags.remove(local)
+        if (captures == null || !local.isFinal) {
+            return false
+        }
+        for ((chunk, offset) in captures) {
+            byteCode[chunk.pos + offset] = CAPTURE_VALUE.toByte()
+        }
+        return true
+    }
+
     private fun discardLastLocal(pop: Boolean) {
         val end = locals.size - 1
         debugInfoLocals?.get(locals[end])?.end = currentCodePoint
@@ -2393,11 +2569,14 @@ class Compiler(val debugMode: Boolean) {
         val local = findLocal(enclosing, name)
         if (local != null) {
             local.isCaptured = true
-            return addUpvalue(compiler, local.sp, true, name, local.isConst, enclosing.fiberName)
+            if (!local.isInitialized) {
+                local.isFinal = false // the closure is part of the local's value, which isn't on the stack yet
+            }
+            return addUpvalue(compiler, local.sp, true, name, local.isConst, local)
         }
         val pair = resolveUpvalue(enclosing, name)
         if (pair != null) {
-            return addUpvalue(compiler, pair.second, false, name, pair.first.isConst, enclosing.fiberName)
+            return addUpvalue(compiler, pair.second, false, name, pair.first.isConst, pair.first.origin)
         }
         return null
     }
@@ -2407,14 +2586,14 @@ class Compiler(val debugMode: Boolean) {
                            isLocal: Boolean,
                            name: String,
                            isConst: Boolean,
-                           fiberName: String
+                           origin: Local
     ): Pair<Upvalue, Int> {
         for ((index, upvalue) in compiler.upvalues.withIndex()) {
-            if (upvalue.sp == sp && upvalue.isLocal == isLocal && upvalue.fiberName == fiberName) {
+            if (upvalue.sp == sp && upvalue.isLocal == isLocal) {
                 return upvalue to index
             }
         }
-        val upvalue = Upvalue(sp, isLocal, name, isConst, fiberName)
+        val upvalue = Upvalue(sp, isLocal, name, isConst, origin)
         compiler.upvalues += upvalue
         return upvalue to compiler.upvalues.size - 1
     }
@@ -2559,13 +2738,16 @@ class Compiler(val debugMode: Boolean) {
                               var isCaptured: Boolean
     ) {
         var isConst = (name == Constants.SELF || CONST_IDENTIFIER.matcher(name).matches())
+        var isInitialized = true
+        var isFinal = true // false if it's reassigned, or captured before it's initialized
+        var value: Any? = null // the literal a const was initialized with, if it was
     }
 
     internal data class Upvalue(val sp: Int,
                                 val isLocal: Boolean,
                                 val name: String,
                                 val isConst: Boolean,
-                                val fiberName: String
+                                val origin: Local // the local this upvalue ultimately captures
     )
 
     private open class ActiveLoop(val start: Int, val depth: Int) {
@@ -2607,7 +2789,7 @@ class Compiler(val debugMode: Boolean) {
     )
 
     private class RolledBackChunk(val chunk: Chunk,
-                                  val data: List<Byte>
+                                  val data: ByteArray
     )
 
     private class CompileError(message: String) : RuntimeException(message)
@@ -2620,6 +2802,12 @@ class Compiler(val debugMode: Boolean) {
 
     companion object {
         const val CALL_DEFAULT_JUMP_LOCATION = -1
+        const val VERSION = 6 // Bump whenever the emitted byte code changes, so that cached compiled code isn't reused
+
+        // How a closure captures each of its upvalues
+        const val CAPTURE_UPVALUE = 0 // shares an upvalue of the enclosing closure
+        const val CAPTURE_LOCAL = 1 // references a local of the enclosing function
+        const val CAPTURE_VALUE = 2 // copies a local of the enclosing function that never changes
         private const val SCRIPT = "Script"
         private val IMPLICIT_ARG = Pattern.compile("\\$[0-9]+")
         private val CONST_IDENTIFIER = Pattern.compile("(_)*[A-Z]+((_)*[A-Z]*)*(_)*")
@@ -0,0 +1,82 @@
+package net.globulus.simi.warp
+
+import net.globulus.simi.warp.OpCode.*
+
+/**
+ * Evaluates ops on literal operands at compile time, the way the [Vm] would evaluate them at runtime. Literals are
+ * Longs, Doubles, Strings, Booleans and [Nil].
+ *
+ * Anything whose result the Vm can't produce without the runtime, e.g, because it throws, involves Nil arithmetic or
+ * calls toString on an instance, isn't folded and is left for the Vm to evaluate.
+ */
+internal object ConstantFolder {
+
+    /**
+     * @return the result of applying the binary [opCode] to [a] and [b], or null if it can't be folded
+     */
+    fun fold(opCode: OpCode, a: Any, b: Any): Any? {
+        if (opCode == EQ) {
+            return if (b == Nil) a == Nil else a == b
+        }
+        if (opCode == ADD) {
+            if (a is String && b !is Nil) {
+                return a + b
+            } else if (b is String && (a is Long || a is Double || a is Boolean)) {
+                return a.toString() + b
+            }
+        }
+        return if (a is Long && b is Long) {
+            foldLongs(opCode, a, b)
+        } else if ((a is Long || a is Double) && (b is Long || b is Double)) {
+            foldDoubles(opCode, (a as Number).toDouble(), (b as Number).toDouble())
+        } else {
+            null
+        }
+    }
+
+    /**
+     * @return the result of applying the unary [opCode] to [a], or null if it can't be folded
+     */
+    fun fold(opCode: OpCode, a: Any): Any? {
+        return when (opCode) {
+            INVERT -> a == false
+            NEGATE -> when (a) {
+                is Long -> -a
+                is Double -> -a
+                else -> null
+            }
+            else -> null
+        }
+    }
+
+    private fun foldLongs(opCode: OpCode, a: Long, b: Long): Any? {
+        return when (opCode) {
+            ADD -> a + b
+            SUBTRACT -> a - b
+            MULTIPLY -> a * b
+            DIVIDE -> if (b == 0L) null else Vm.intIfPossible(a * 1.0 / b)
+            DIVIDE_INT -> if (b == 0L) null else a / b
+            MOD -> if (b == 0L) null else a % b
+            LT -> a < b
+            LE -> a <= b
+            GE -> a >= b
+            GT -> a > b
+            else -> null
+        }
+    }
+
+    private fun foldDoubles(opCode: OpCode, a: Double, b: Double): Any? {
+        return when (opCode) {
+            ADD -> Vm.intIfPossible(a + b)
+            SUBTRACT -> Vm.intIfPossible(a - b)
+            MULTIPLY -> Vm.intIfPossible(a * b)
+            DIVIDE -> if (b == 0.0) null else Vm.intIfPossible(a / b)
+            MOD -> if (b == 0.0) null else Vm.intIfPossible(a % b)
+            LT -> a < b
+            LE -> a <= b
+            GE -> a >= b
+            GT -> a > b
+            else -> null
+        }
+    }
+}
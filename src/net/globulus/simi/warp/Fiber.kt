@@ -1,5 +1,7 @@
 package net.globulus.simi.warp
 
+import java.util.*
+
 class FiberTemplate(val closure: Closure)
 
 class Fiber(val closure: Closure) {
@@ -7,7 +9,13 @@ class Fiber(val closure: Closure) {
 
     internal var sp = 0
     internal var stackSize = Vm.INITIAL_STACK_SIZE
-    internal var stack = arrayOfNulls<Any>(Vm.INITIAL_STACK_SIZE)
+    /**
+     * The value stack is made of two lanes. Numbers are kept unboxed in [prims], with a marker in [refs] telling
+     * if the slot holds a Long or the bits of a Double, and all other values are kept in [refs]. Reading a slot
+     * with [get] boxes the number, so the Vm works with the lanes directly wherever a number doesn't escape.
+     */
+    internal var refs = arrayOfNulls<Any>(Vm.INITIAL_STACK_SIZE)
+    internal var prims = LongArray(Vm.INITIAL_STACK_SIZE)
 
     internal var fp = 0
         set(value) {
@@ -17,12 +25,117 @@ class Fiber(val closure: Closure) {
             }
         }
     internal lateinit var frame: CallFrame
-    internal val callFrames = arrayOfNulls<CallFrame>(Vm.MAX_FRAMES)
+    /**
+     * Both the stack and the frames start out small and grow as calls go deeper, and are trimmed back whenever the
+     * fiber stops running, so that the many fibers a program keeps around cost little while they wait.
+     */
+    internal var callFrames = arrayOfNulls<CallFrame>(INITIAL_FRAMES)
 
     internal var caller: Fiber? = null
+    internal var openUpvalues: Upvalue? = null // the upvalues that capture slots of this fiber's stack
+    internal var task: Scheduler.Task? = null // set if the fiber was spawned to run alongside the others
 
     val name: String = closure.function.name
 
+    internal operator fun get(i: Int): Any? {
+        val ref = refs[i]
+        return when {
+            ref === LONG -> prims[i]
+            ref === DOUBLE -> Double.fromBits(prims[i])
+            else -> ref
+        }
+    }
+
+    internal operator fun set(i: Int, value: Any?) {
+        when (value) {
+            is Long -> setLong(i, value)
+            is Double -> setDouble(i, value)
+            else -> refs[i] = value
+        }
+    }
+
+    internal fun setLong(i: Int, value: Long) {
+        refs[i] = LONG
+        prims[i] = value
+    }
+
+    internal fun setDouble(i: Int, value: Double) {
+        refs[i] = DOUBLE
+        prims[i] = value.toRawBits()
+    }
+
+    internal fun isLong(i: Int) = refs[i] === LONG
+
+    internal fun isDouble(i: Int) = refs[i] === DOUBLE
+
+    internal fun isNumber(i: Int) = refs[i].let { it === LONG || it === DOUBLE }
+
+    /**
+     * Reads a slot known to hold a number as a Double.
+     */
+    internal fun getDouble(i: Int): Double {
+        return if (refs[i] === LONG) prims[i].toDouble() else Double.fromBits(prims[i])
+    }
+
+    /**
+     * Copies a slot without boxing the value in it.
+     */
+    internal fun copy(from: Int, to: Int) {
+        refs[to] = refs[from]
+        prims[to] = prims[from]
+    }
+
+    /**
+     * Drops the references held in the slots from [from] until [to], which are no longer in use.
+     */
+    internal fun clear(from: Int, to: Int) {
+        Arrays.fill(refs, from, to, null)
+    }
+
+    /**
+     * Grows the stack so that it holds at least [size] slots.
+     */
+    internal fun ensureStackSize(size: Int) {
+        if (size > stackSize) {
+            resize(maxOf(stackSize * Vm.STACK_GROWTH_FACTOR, Integer.highestOneBit(size) shl 1))
+        }
+    }
+
+    internal fun resize(size: Int) {
+        stackSize = size
+        refs = refs.copyOf(size)
+        prims = prims.copyOf(size)
+    }
+
+    /**
+     * Makes room for one more frame.
+     * @return false if the fiber already holds [Vm.MAX_FRAMES] frames
+     */
+    internal fun growFrames(): Boolean {
+        if (callFrames.size == Vm.MAX_FRAMES) {
+            return false
+        }
+        callFrames = callFrames.copyOf(minOf(callFrames.size * 2, Vm.MAX_FRAMES))
+        return true
+    }
+
+    /**
+     * Shrinks the stack and the frames if they're much larger than what the fiber currently holds, e.g, after it
+     * returned from deep recursion. The stack still keeps the room its frames need.
+     */
+    internal fun trim() {
+        var needed = sp
+        for (i in 0 until fp) {
+            needed = maxOf(needed, callFrames[i]!!.stackLimit)
+        }
+        if (stackSize >= TRIM_FACTOR * maxOf(needed, Vm.INITIAL_STACK_SIZE)) {
+            resize(maxOf(Vm.INITIAL_STACK_SIZE, Integer.highestOneBit(needed) shl 1))
+        }
+        if (callFrames.size >= TRIM_FACTOR * maxOf(fp, INITIAL_FRAMES)) {
+            callFrames = callFrames.copyOf(maxOf(INITIAL_FRAMES, Integer.highestOneBit(fp) shl 1))
+        }
+    }
+
     override fun toString(): String {
         return "<fiber $name>"
     }
@@ -30,4 +143,13 @@ class Fiber(val closure: Closure) {
     internal enum class State {
         NEW, STARTED
     }
+
+    private companion object {
+        const val INITIAL_FRAMES = 4
+        const val TRIM_FACTOR = 4
+
+        // Markers for the slots whose values are in the primitive lane
+        val LONG = Any()
+        val DOUBLE = Any()
+    }
 }
@@ -2,6 +2,7 @@ package net.globulus.simi.warp
 
 import net.globulus.simi.tool.TokenPatcher
 import net.globulus.simi.warp.debug.DebugInfo
+import net.globulus.simi.warp.jit.CompiledCode
 
 class Function(
         val name: String,
@@ -14,6 +15,14 @@ class Function(
     override var optionalParamsStart: Int = OptionalParamsFunc.DEFAULT_PARAMS_START
     override var defaultValues: Array<Any>? = null
 
+    private var decoded: Instructions? = null
+    internal val instructions: Instructions get() = decoded ?: decode().also { decoded = it }
+
+    // Profiling counters the Jit uses to find hot functions, and the code it compiled for this one
+    internal var invocationCount = 0
+    internal var backEdgeCount = 0
+    internal var compiled: CompiledCode? = null
+
     override fun toString(): String {
         return "<def $name $arity>"
     }
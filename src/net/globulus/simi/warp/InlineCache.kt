@@ -0,0 +1,104 @@
+package net.globulus.simi.warp
+
+/**
+ * A polymorphic inline cache for a single INVOKE, GET_PROP or SET_PROP call site. It remembers what a name resolved
+ * to for the last few receivers seen at the site, so that field names don't need to be hashed on every execution:
+ * - For instances, it's keyed by the instance [Shape] and holds the index of the field slot. Shapes are immutable, so
+ * these entries never go stale.
+ * - For classes, it's keyed by the [SClass] and holds the value of the field. An entry is valid as long as the class'
+ * [SClass.version] hasn't changed since it was cached, so any change to the class' fields (extensions, mixins,
+ * assignments) invalidates it.
+ *
+ * Once the site sees more than [SIZE] different receiver/name pairs it's considered megamorphic and stops caching.
+ */
+internal class InlineCache {
+    private val keys = arrayOfNulls<Any>(SIZE)
+    private val names = arrayOfNulls<String>(SIZE)
+    private val versions = IntArray(SIZE)
+    private val values = arrayOfNulls<Any>(SIZE)
+    private val indexes = IntArray(SIZE)
+    private var size = 0
+    private var megamorphic = false
+
+    /**
+     * Returns klass.fields[name], or null if there's no such field.
+     */
+    fun lookUp(klass: SClass, name: String): Any? {
+        for (i in 0 until size) {
+            if (keys[i] === klass && names[i] == name) {
+                if (versions[i] != klass.version) {
+                    versions[i] = klass.version
+                    values[i] = klass.fields[name] ?: ABSENT
+                }
+                return values[i].takeUnless { it === ABSENT }
+            }
+        }
+        val value = klass.fields[name]
+        add(klass, name, klass.version, value ?: ABSENT, -1)
+        return value
+    }
+
+    /**
+     * Returns the field value of an instance that isn't in dictionary mode, or null if it doesn't have the field.
+     */
+    fun getField(instance: Instance, shape: Shape, name: String): Any? {
+        val index = indexOf(shape, name)
+        return if (index == -1) null else instance.getField(index)
+    }
+
+    /**
+     * Sets the field value of an instance that isn't in dictionary mode, caching the shape transition if the field
+     * is a new one.
+     */
+    fun putField(instance: Instance, shape: Shape, name: String, value: Any) {
+        for (i in 0 until size) {
+            if (keys[i] === shape && names[i] == name && values[i] != null) {
+                instance.putField(values[i] as Shape, indexes[i], value)
+                return
+            }
+        }
+        val index = shape.indexOf(name)
+        if (index != -1) {
+            add(shape, name, 0, shape, index)
+            instance.putField(shape, index, value)
+        } else if (shape.size < Shape.MAX_SIZE) {
+            val target = shape.with(name)
+            add(shape, name, 0, target, shape.size)
+            instance.putField(target, shape.size, value)
+        } else {
+            instance.putField(name, value)
+        }
+    }
+
+    private fun indexOf(shape: Shape, name: String): Int {
+        for (i in 0 until size) {
+            if (keys[i] === shape && names[i] == name) {
+                return indexes[i]
+            }
+        }
+        return shape.indexOf(name).also {
+            add(shape, name, 0, null, it)
+        }
+    }
+
+    private fun add(key: Any, name: String, version: Int, value: Any?, index: Int) {
+        if (megamorphic) {
+            return
+        }
+        if (size == SIZE) {
+            megamorphic = true
+            return
+        }
+        keys[size] = key
+        names[size] = name
+        versions[size] = version
+        values[size] = value
+        indexes[size] = index
+        size++
+    }
+
+    private companion object {
+        const val SIZE = 8
+        val ABSENT = Any() // Marks cached lookups that found nothing
+    }
+}
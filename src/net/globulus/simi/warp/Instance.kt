@@ -11,25 +11,96 @@ open class Instance(val klass: SClass) : Fielded {
     var mutable = false
         internal set
 
-    override val fields: MutableMap<String, Any> = mutableMapOf()
+    /**
+     * Field values are kept in [slots], at the indexes given by the [shape]. Instances that are used as maps, i.e,
+     * that get fields removed or have a lot of them, switch to dictionary mode and keep their fields in a
+     * [dictionary] instead, with their shape set to null.
+     */
+    internal var shape: Shape? = Shape.EMPTY
+        private set
+    private var slots = NO_SLOTS
+    private var dictionary: MutableMap<String, Any>? = null
 
-    operator fun get(key: String) = fields[key]
+    override val fields: MutableMap<String, Any> get() = dictionary ?: ShapedFields()
+
+    operator fun get(key: String) = getField(key)
 
     operator fun set(key: String, value: Any) {
         if (value == Nil) {
-            fields.remove(key)
+            removeField(key)
+        } else {
+            putField(key, value)
+        }
+    }
+
+    internal fun getField(key: String): Any? {
+        val shape = shape ?: return dictionary!![key]
+        val index = shape.indexOf(key)
+        return if (index == -1) null else slots[index]
+    }
+
+    internal fun getField(index: Int): Any = slots[index]!!
+
+    internal fun putField(key: String, value: Any): Any? {
+        val shape = shape ?: return dictionary!!.put(key, value)
+        val index = shape.indexOf(key)
+        return if (index != -1) {
+            slots[index].also { slots[index] = value }
+        } else if (shape.size == Shape.MAX_SIZE) {
+            toDictionary().put(key, value)
+        } else {
+            putField(shape.with(key), shape.size, value)
+            null
+        }
+    }
+
+    /**
+     * Stores the value at the slot index, transitioning to the target shape if it isn't the current one.
+     */
+    internal fun putField(target: Shape, index: Int, value: Any) {
+        if (target !== shape) {
+            if (target.size > slots.size) {
+                slots = slots.copyOf(maxOf(MIN_CAPACITY, slots.size * 2))
+            }
+            shape = target
+        }
+        slots[index] = value
+    }
+
+    internal fun removeField(key: String): Any? {
+        val shape = shape ?: return dictionary!!.remove(key)
+        return if (shape.indexOf(key) == -1) null else toDictionary().remove(key)
+    }
+
+    private fun clearFields() {
+        if (shape == null) {
+            dictionary!!.clear()
         } else {
-            fields[key] = value
+            shape = Shape.EMPTY
+            slots = NO_SLOTS
+        }
+    }
+
+    /**
+     * Switches the instance to dictionary mode, for when it's known to be used as a map.
+     */
+    internal fun toDictionary(): MutableMap<String, Any> {
+        return dictionary ?: mutableMapOf<String, Any>().also { map ->
+            shape!!.keys.forEachIndexed { i, key -> map[key] = slots[i]!! }
+            dictionary = map
+            shape = null
+            slots = NO_SLOTS
         }
     }
 
     internal open fun stringify(vm: Vm): String {
+        val declaredClasses = vm.context.declaredClasses
         return StringBuilder()
                 .append(if (mutable) TokenType.DOLLAR_LEFT_BRACKET.toCode() else TokenType.LEFT_BRACKET.toCode())
-                .append(if (klass != Vm.declaredClasses[Constants.CLASS_OBJECT] && klass != Vm.declaredClasses[Constants.CLASS_LIST]) "class = ${klass.name}, " else "")
+                .append(if (klass != declaredClasses[Constants.CLASS_OBJECT] && klass != declaredClasses[Constants.CLASS_LIST]) "class = ${klass.name}, " else "")
                 .append(fields.entries
                         // for raw objects, just show their respective fields, ignoring the Object class methods
-                        .filter { Vm.declaredClasses[Constants.CLASS_OBJECT]?.fields?.containsKey(it.key) == false }
+                        .filter { declaredClasses[Constants.CLASS_OBJECT]?.fields?.containsKey(it.key) == false }
                         .joinToString { "${it.key} ${TokenType.EQUAL.toCode()} ${vm.stringify(it.value)}" }
                 )
                 .append(TokenType.RIGHT_BRACKET.toCode())
@@ -39,16 +110,76 @@ open class Instance(val klass: SClass) : Fielded {
     override fun toString(): String {
         return "${klass.name} instance"
     }
+
+    /**
+     * A map view of the fields of an instance that isn't in dictionary mode.
+     */
+    private inner class ShapedFields : AbstractMutableMap<String, Any>() {
+        override val size get() = shape?.size ?: dictionary!!.size
+
+        override fun containsKey(key: String) = getField(key) != null
+
+        override fun get(key: String) = getField(key)
+
+        override fun put(key: String, value: Any) = putField(key, value)
+
+        override fun remove(key: String) = removeField(key)
+
+        override fun clear() = clearFields()
+
+        override val entries: MutableSet<MutableMap.MutableEntry<String, Any>> get() {
+            return object : AbstractMutableSet<MutableMap.MutableEntry<String, Any>>() {
+                override val size get() = this@ShapedFields.size
+
+                override fun add(element: MutableMap.MutableEntry<String, Any>): Boolean {
+                    throw UnsupportedOperationException()
+                }
+
+                override fun iterator(): MutableIterator<MutableMap.MutableEntry<String, Any>> {
+                    // Iterates over a snapshot, so that the view stays consistent if the instance changes modes
+                    val snapshot = shape?.keys?.mapIndexed { i, key -> Field(key, slots[i]!!) }
+                            ?: dictionary!!.map { Field(it.key, it.value) }
+                    val iterator = snapshot.iterator()
+                    return object : MutableIterator<MutableMap.MutableEntry<String, Any>> {
+                        private var last: Field? = null
+
+                        override fun hasNext() = iterator.hasNext()
+
+                        override fun next() = iterator.next().also { last = it }
+
+                        override fun remove() {
+                            removeField(last!!.key)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private inner class Field(override val key: String, override var value: Any) : MutableMap.MutableEntry<String, Any> {
+        override fun setValue(newValue: Any): Any {
+            return value.also {
+                value = newValue
+                putField(key, newValue)
+            }
+        }
+    }
+
+    private companion object {
+        val NO_SLOTS = arrayOfNulls<Any>(0)
+        const val MIN_CAPACITY = 4
+    }
 }
 
-class ListInstance(mutable: Boolean, providedItems: MutableList<Any>?) : Instance(Vm.declaredClasses[Constants.CLASS_LIST]!!, mutable) {
+class ListInstance(private val context: VmContext,
+                   mutable: Boolean,
+                   providedItems: MutableList<Any>?
+) : Instance(context.declaredClasses[Constants.CLASS_LIST]!!, mutable) {
     internal val items = providedItems ?: mutableListOf()
 
     operator fun get(index: Int): Any {
         return if (index >= items.size) {
-            Instance(Vm.declaredClasses[Constants.EXCEPTION_ILLEGAL_ARGUMENT]!!, false).apply {
-                fields[Constants.MESSAGE] = "index: $index, size: ${items.size}"
-            }
+            context.illegalArgumentException("index: $index, size: ${items.size}")
         } else if (index >= 0) {
             items[index]
         } else {
@@ -69,15 +200,15 @@ class ListInstance(mutable: Boolean, providedItems: MutableList<Any>?) : Instanc
         val start = if (from < 0) len + from else from
         val end = if (to < 0) len + to else to
         if (start >= end) {
-            return illegalArgumentException("start >= end, $start, $end")
+            return context.illegalArgumentException("start >= end, $start, $end")
         }
         if (start < 0) {
-            return illegalArgumentException("start < 0, $start")
+            return context.illegalArgumentException("start < 0, $start")
         }
         if (end > len) {
-            return illegalArgumentException("end > len, $end, $len")
+            return context.illegalArgumentException("end > len, $end, $len")
         }
-        return ListInstance(mutable, items.subList(start.toInt(), end.toInt()))
+        return ListInstance(context, mutable, items.subList(start.toInt(), end.toInt()))
     }
 
     override fun stringify(vm: Vm): String {
@@ -0,0 +1,318 @@
+package net.globulus.simi.warp
+
+import net.globulus.simi.warp.OpCode.*
+import java.nio.ByteBuffer
+
+/**
+ * The decoded form of a [Function]'s byte code, which is what the [Vm] actually dispatches over. Every instruction
+ * is laid out as its opcode ordinal followed by its operands, each taking exactly one slot of [code]:
+ * - CONST_INT and CONST_FLOAT literals are moved to the [constants] pool so they're boxed once, at decode time.
+ * - Jump and proc locations are rewritten from byte offsets to indexes in [code].
+ * - Byte-wide operands (class kinds, mutability flags, upvalue locality) are widened to full slots.
+ * - The exception checks after calls that no rescue handles are dropped, as they never jump, and outside of debug
+ *   mode the control flow is cleaned up by a [JumpOptimizer] and common sequences are fused into [Superinstructions].
+ */
+class Instructions(val code: IntArray,
+                   val constants: Array<Any>,
+                   private val byteOffsets: IntArray
+) {
+    /**
+     * Inline caches of INVOKE, SUPER_INVOKE and GET_PROP instructions, indexed by the location of the instruction.
+     */
+    internal val caches = arrayOfNulls<InlineCache>(code.size)
+
+    /**
+     * The deepest the stack of a frame running this code gets, counting from the frame's first slot, the way the
+     * JVM's max_stack does. The Vm makes room for that many slots when it calls the function, so that pushing never
+     * needs to check if the stack is full.
+     */
+    var maxStack = 0
+        private set
+
+    /**
+     * Same as [maxStack], for the deepest of the proc bodies in this code, counting from the top of the stack at the
+     * call site of the proc.
+     */
+    var maxProcStack = 0
+        private set
+
+    /**
+     * Maps an index in [code] back to the position in the original byte code, which is what the debug info
+     * line and breakpoint tables refer to.
+     */
+    fun byteOffset(ip: Int): Int {
+        return byteOffsets[minOf(ip, byteOffsets.size - 1)]
+    }
+
+    /**
+     * The number of slots the instruction at [ip] takes up, its opcode included.
+     */
+    internal fun length(ip: Int): Int {
+        return when (OpCode.from(code[ip])) {
+            CONST_INT, CONST_FLOAT, CONST_ID, CONST, POP_UNDER, SET_LOCAL, GET_LOCAL, SET_UPVALUE, GET_UPVALUE, CALL,
+            RETURN, METHOD, EXTEND_METHOD, FIELD, SUPER, ANNOTATE_FIELD,
+            JUMP, JUMP_IF_FALSE, JUMP_IF_NIL, JUMP_IF_EXCEPTION, GET_PROP_ID -> 2
+            PROC, INVOKE, SUPER_INVOKE, NATIVE_METHOD, EXTEND_NATIVE_METHOD, CLASS, INNER_CLASS, OBJECT, LIST,
+            ADD_LOCALS -> 3
+            LT_LOCAL_INT_JUMP_IF_FALSE, INVOKE_LOCAL -> 4
+            CLOSURE, FIBER -> 2 + 2 * (constants[code[ip + 1]] as Function).upvalueCount
+            else -> 1
+        }
+    }
+
+    /**
+     * The offsets of the operands of the instruction at [ip] that hold locations in [code].
+     */
+    internal fun locationOperands(ip: Int) = locationOperands(OpCode.from(code[ip]))
+
+    /**
+     * @return these instructions without the ones that [removed] marks, and with the ones in [replaced] swapped for
+     * the given slots. Locations past the dropped slots move up, and those of dropped instructions move to the next
+     * instruction that's kept.
+     */
+    internal fun rewrite(removed: BooleanArray, replaced: Map<Int, IntArray> = emptyMap()): Instructions {
+        val locations = IntArray(code.size + 1) // old location -> new one
+        var size = 0
+        var ip = 0
+        while (ip < code.size) {
+            locations[ip] = size
+            if (!removed[ip]) {
+                size += replaced[ip]?.size ?: length(ip)
+            }
+            ip += length(ip)
+        }
+        locations[code.size] = size
+        val rewritten = IntArray(size)
+        val offsets = IntArray(size + 1)
+        ip = 0
+        while (ip < code.size) {
+            if (!removed[ip]) {
+                val location = locations[ip]
+                val slots = replaced[ip] ?: code.copyOfRange(ip, ip + length(ip))
+                slots.copyInto(rewritten, location)
+                offsets.fill(byteOffset(ip), location, location + slots.size)
+                for (operand in locationOperands(OpCode.from(slots[0]))) {
+                    rewritten[location + operand] = locations[rewritten[location + operand]]
+                }
+            }
+            ip += length(ip)
+        }
+        offsets[size] = byteOffset(code.size)
+        return Instructions(rewritten, constants, offsets)
+    }
+
+    /**
+     * Sets [maxStack] and [maxProcStack], for a function that's called with [arity] arguments.
+     */
+    internal fun measureStack(arity: Int) {
+        val procs = ArrayDeque<Pair<Int, Int>>() // start and end locations of the proc bodies found so far
+        val measuredProcs = mutableSetOf<Int>()
+        maxStack = maxDepth(0, -1, arity + 1, procs) // + 1 for the closure itself
+        while (procs.isNotEmpty()) {
+            val (start, end) = procs.removeFirst()
+            if (measuredProcs.add(start)) {
+                maxProcStack = maxOf(maxProcStack, maxDepth(start, end, 0, procs))
+            }
+        }
+    }
+
+    /**
+     * @return the deepest the stack gets while running the code from [start], which starts out [depth] slots deep,
+     * until it returns or reaches [end]
+     */
+    private fun maxDepth(start: Int, end: Int, depth: Int, procs: ArrayDeque<Pair<Int, Int>>): Int {
+        val depths = IntArray(code.size) { -1 } // the deepest the stack was found to be at each location
+        val pending = ArrayDeque<Int>()
+        var max = depth
+        val limit = depth + code.size // every instruction pushes at most a slot or two, so this means a loop grows it
+
+        fun reach(ip: Int, depth: Int) {
+            if (ip == end || ip >= code.size || depth <= depths[ip]) {
+                return
+            }
+            if (depth > limit) {
+                throw MalformedCodeError("The stack doesn't balance out at $ip.")
+            }
+            depths[ip] = depth
+            max = maxOf(max, depth)
+            pending += ip
+        }
+
+        reach(start, depth)
+        while (pending.isNotEmpty()) {
+            val ip = pending.removeLast()
+            val d = depths[ip]
+            val next = ip + length(ip)
+            when (OpCode.from(code[ip])) {
+                RETURN -> { } // Only pops run after it
+                JUMP -> reach(code[ip + 1], d)
+                JUMP_IF_FALSE, JUMP_IF_NIL, JUMP_IF_EXCEPTION -> {
+                    reach(code[ip + 1], d)
+                    reach(next, d)
+                }
+                PROC -> {
+                    procs += code[ip + 1] to code[ip + 2]
+                    reach(next, d + 1)
+                }
+                INIT_ENUM -> {
+                    max = maxOf(max, d + 1) // The enum class is pushed again as the receiver of its init
+                    reach(next, d)
+                }
+                LT_LOCAL_INT_JUMP_IF_FALSE -> {
+                    max = maxOf(max, d + 2) // Operands that aren't Longs are pushed and compared the generic way
+                    reach(code[ip + 3], d + 1)
+                    reach(next, d + 1)
+                }
+                ADD_LOCALS -> {
+                    max = maxOf(max, d + 2) // Same as above
+                    reach(next, d + 1)
+                }
+                INVOKE_LOCAL -> {
+                    max = maxOf(max, d + 1) // The local is pushed as the last argument before the call
+                    reach(next, d + stackEffect(ip))
+                }
+                else -> reach(next, d + stackEffect(ip))
+            }
+        }
+        return max
+    }
+
+    /**
+     * The number of slots the instruction at [ip] adds to the stack, or removes from it if it's negative.
+     */
+    private fun stackEffect(ip: Int): Int {
+        return when (val opCode = OpCode.from(code[ip])) {
+            TRUE, FALSE, CONST_INT, CONST_FLOAT, CONST_ID, CONST, NIL, DUPLICATE, GET_LOCAL, GET_UPVALUE, CLOSURE,
+            FIBER, CLASS, INNER_CLASS, SUPER, SELF_FN, START_COMPREHENSION, ADD_LOCALS -> 1
+            UPDATE_PROP -> 2
+            POP, SET_LOCAL, SET_UPVALUE, GET_PROP, LT, LE, GT, GE, EQ, IS, ADD, SUBTRACT, MULTIPLY, DIVIDE, DIVIDE_INT,
+            MOD, HAS, PRINT, CLOSE_UPVALUE, INHERIT, MIXIN, EXTEND_MIXIN, METHOD, EXTEND_METHOD, FIELD, EXTEND_DONE,
+            GET_SUPER, ADD_TO_COMPREHENSION, ANNOTATE, YIELD -> -1
+            SET_PROP -> -3
+            POP_UNDER, CALL -> -code[ip + 1]
+            INVOKE, SUPER_INVOKE -> -code[ip + 2]
+            INVOKE_LOCAL -> 1 - code[ip + 3]
+            POP_TWO -> -2
+            OBJECT -> if (code[ip + 2] == -1) 0 else 1 - 2 * code[ip + 2] // -1 for comprehensions
+            LIST -> if (code[ip + 2] == -1) 0 else 1 - code[ip + 2]
+            else -> if (opCode.generic != null) -1 else 0 // Quickened ops are all binary
+        }
+    }
+
+    companion object {
+        private val NO_OPERANDS = IntArray(0)
+        private val JUMP_OPERANDS = intArrayOf(1)
+        private val FUSED_JUMP_OPERANDS = intArrayOf(3)
+        private val PROC_OPERANDS = intArrayOf(1, 2)
+
+        private fun locationOperands(opCode: OpCode): IntArray {
+            return when (opCode) {
+                JUMP, JUMP_IF_FALSE, JUMP_IF_NIL, JUMP_IF_EXCEPTION -> JUMP_OPERANDS
+                LT_LOCAL_INT_JUMP_IF_FALSE -> FUSED_JUMP_OPERANDS
+                PROC -> PROC_OPERANDS
+                else -> NO_OPERANDS
+            }
+        }
+    }
+}
+
+internal fun Function.decode(): Instructions {
+    val buffer = ByteBuffer.wrap(code)
+    val size = code.size
+    val decoded = IntArray(size) // decoded stream is never longer than the byte code
+    val byteOffsets = IntArray(size + 1)
+    val positions = IntArray(size + 1) { -1 } // byte offset -> decoded index
+    val constants = mutableListOf<Any>().apply { addAll(this@decode.constants) }
+    val literals = mutableMapOf<Any, Int>()
+    val jumps = mutableListOf<Int>() // decoded indexes of operands that hold byte offsets
+    var ip = 0
+
+    fun literalIndex(value: Any): Int {
+        return literals[value] ?: run {
+            constants += value
+            (constants.size - 1).also { literals[value] = it }
+        }
+    }
+
+    fun emit(value: Int, offset: Int) {
+        decoded[ip] = value
+        byteOffsets[ip] = offset
+        ip++
+    }
+
+    while (buffer.hasRemaining()) {
+        val offset = buffer.position()
+        positions[offset] = ip
+        val opCode = OpCode.from(buffer.get())
+        emit(opCode.ordinal, offset)
+        when (opCode) {
+            CONST_INT -> emit(literalIndex(buffer.long), offset)
+            CONST_FLOAT -> emit(literalIndex(buffer.double), offset)
+            CONST_ID, CONST, POP_UNDER, SET_LOCAL, GET_LOCAL, SET_UPVALUE, GET_UPVALUE, CALL, RETURN,
+            METHOD, EXTEND_METHOD, FIELD, SUPER, ANNOTATE_FIELD -> emit(buffer.int, offset)
+            JUMP -> {
+                jumps += ip
+                emit(buffer.int, offset)
+            }
+            JUMP_IF_FALSE, JUMP_IF_NIL, JUMP_IF_EXCEPTION -> {
+                val location = buffer.int
+                if (location == Compiler.CALL_DEFAULT_JUMP_LOCATION) {
+                    ip-- // The exception check after a call that no rescue handles never jumps
+                } else {
+                    jumps += ip
+                    emit(location, offset)
+                }
+            }
+            PROC -> {
+                jumps += ip
+                emit(buffer.int, offset)
+                jumps += ip
+                emit(buffer.int, offset)
+            }
+            INVOKE, SUPER_INVOKE, NATIVE_METHOD, EXTEND_NATIVE_METHOD -> {
+                emit(buffer.int, offset)
+                emit(buffer.int, offset)
+            }
+            CLASS, INNER_CLASS, OBJECT, LIST -> {
+                emit(buffer.get().toInt(), offset)
+                emit(buffer.int, offset)
+            }
+            CLOSURE, FIBER -> {
+                val constIdx = buffer.int
+                emit(constIdx, offset)
+                for (i in 0 until (this.constants[constIdx] as Function).upvalueCount) {
+                    emit(buffer.get().toInt(), offset)
+                    emit(buffer.int, offset)
+                }
+            }
+            else -> { } // No operands
+        }
+    }
+    positions[size] = ip
+    byteOffsets[ip] = size
+
+    for (jump in jumps) {
+        val location = decoded[jump]
+        decoded[jump] = positions[location].also {
+            if (it == -1) {
+                throw MalformedCodeError("Jump to $location in $name doesn't land on an instruction.")
+            }
+        }
+    }
+    val instructions = Instructions(decoded.copyOf(ip), constants.toTypedArray(), byteOffsets.copyOf(ip + 1))
+    // Breakpoints refer to instructions as they were compiled, so debug code is left as is
+    val optimized = if (debugInfo == null) {
+        Superinstructions(JumpOptimizer(instructions).optimize()).fuse()
+    } else {
+        instructions
+    }
+    return optimized.apply {
+        measureStack(arity)
+    }
+}
+
+/**
+ * Thrown when decoded code breaks a rule that the [Vm] relies on, which is a bug in the compiler or in a pass over the
+ * code. Unlike the IllegalStateException that aborts a program, it isn't swallowed, so the bug gets reported.
+ */
+class MalformedCodeError(message: String) : RuntimeException(message)
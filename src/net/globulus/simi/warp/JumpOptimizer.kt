@@ -0,0 +1,181 @@
+package net.globulus.simi.warp
+
+import net.globulus.simi.warp.OpCode.*
+
+/**
+ * Cleans up the control flow that desugared ifs, whens, loops and rescues leave in decoded [Instructions]:
+ * - A jump that lands on a jump that's bound to jump as well goes straight to where that one goes.
+ * - A conditional jump right after a literal either always jumps, and becomes a JUMP, or never does, and is dropped
+ *   along with the push and pop of the literal.
+ * - Jumps to the very next instruction, and code that no path reaches, are dropped.
+ *
+ * Dropped instructions are removed from the code with [Instructions.rewrite]. Jumps to a dropped instruction land on
+ * the next one that's kept, which does the same, as dropped instructions never change the stack on the paths that run
+ * through them.
+ */
+internal class JumpOptimizer(private val instructions: Instructions) {
+    private val code = instructions.code
+    private val removed = BooleanArray(code.size)
+    private val targets = BooleanArray(code.size + 1) // locations that jumps and procs refer to
+
+    fun optimize(): Instructions {
+        markTargets()
+        foldBranches()
+        threadJumps()
+        removeUnreachable()
+        return if (removed.any { it }) instructions.rewrite(removed) else instructions
+    }
+
+    private fun markTargets() {
+        forEachInstruction { ip ->
+            for (operand in instructions.locationOperands(ip)) {
+                targets[code[ip + operand]] = true
+            }
+        }
+    }
+
+    private fun foldBranches() {
+        var previous = -1
+        forEachInstruction { ip ->
+            if (!removed[ip]) {
+                if (previous != -1 && !removed[previous] && !targets[ip] && isLiteral(previous)) {
+                    foldBranch(previous, ip)
+                }
+                if (!removed[ip]) {
+                    previous = ip
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds the jump at [ip], which isn't a jump target, so the value it checks is always the one [literal] pushes.
+     */
+    private fun foldBranch(literal: Int, ip: Int) {
+        val opCode = OpCode.from(code[ip])
+        val isTaken = when (opCode) {
+            JUMP -> true
+            JUMP_IF_FALSE -> code[literal] == FALSE.ordinal
+            JUMP_IF_NIL -> code[literal] == NIL.ordinal
+            JUMP_IF_EXCEPTION -> false
+            else -> return
+        }
+        if (isTaken) {
+            val location = resolve(code[ip + 1])
+            if (location < code.size && code[location] == POP.ordinal) { // the literal is popped right away
+                removed[literal] = true
+                code[ip + 1] = nextLive(location)
+                targets[code[ip + 1]] = true
+            } else if (opCode == JUMP) {
+                return
+            }
+            code[ip] = JUMP.ordinal
+        } else {
+            removed[ip] = true
+            val next = nextLive(ip)
+            if (next < code.size && code[next] == POP.ordinal && !targets[next]) {
+                removed[literal] = true
+                removed[next] = true
+            }
+        }
+    }
+
+    private fun threadJumps() {
+        forEachInstruction { ip ->
+            val opCode = OpCode.from(code[ip])
+            if (removed[ip] || (opCode != JUMP && opCode != JUMP_IF_FALSE && opCode != JUMP_IF_NIL
+                            && opCode != JUMP_IF_EXCEPTION)) {
+                return@forEachInstruction
+            }
+            var location = resolve(code[ip + 1])
+            var steps = 0 // stops at loops that only jump around
+            while (location < code.size && steps++ < code.size) {
+                val next = OpCode.from(code[location])
+                if (next != JUMP && next != opCode) { // the same check on the same value has the same outcome
+                    break
+                }
+                location = resolve(code[location + 1])
+            }
+            code[ip + 1] = location
+            targets[location] = true
+            if (location == nextLive(ip)) {
+                removed[ip] = true
+            }
+        }
+    }
+
+    private fun removeUnreachable() {
+        val reached = BooleanArray(code.size)
+        val pending = ArrayDeque<Int>()
+
+        fun reach(ip: Int) {
+            if (ip < code.size && !reached[ip]) {
+                reached[ip] = true
+                pending += ip
+            }
+        }
+
+        reach(0)
+        while (pending.isNotEmpty()) {
+            val ip = pending.removeLast()
+            val next = next(ip)
+            if (removed[ip]) {
+                reach(next)
+                continue
+            }
+            when (OpCode.from(code[ip])) {
+                JUMP -> reach(code[ip + 1])
+                JUMP_IF_FALSE, JUMP_IF_NIL, JUMP_IF_EXCEPTION, PROC -> {
+                    reach(code[ip + 1])
+                    reach(next)
+                }
+                RETURN -> { // The instructions that close the scope are run as a part of it
+                    var pop = next
+                    repeat(code[ip + 1]) {
+                        reached[pop] = true
+                        pop = next(pop)
+                    }
+                }
+                else -> reach(next)
+            }
+        }
+        forEachInstruction { ip ->
+            if (!reached[ip]) {
+                removed[ip] = true
+            }
+        }
+    }
+
+    private fun isLiteral(ip: Int): Boolean {
+        return when (OpCode.from(code[ip])) {
+            TRUE, FALSE, NIL, CONST_INT, CONST_FLOAT, CONST -> true
+            else -> false
+        }
+    }
+
+    private inline fun forEachInstruction(action: (Int) -> Unit) {
+        var ip = 0
+        while (ip < code.size) {
+            action(ip)
+            ip = next(ip)
+        }
+    }
+
+    private fun next(ip: Int) = ip + instructions.length(ip)
+
+    /**
+     * @return the first instruction after [ip] that's kept
+     */
+    private fun nextLive(ip: Int) = resolve(next(ip))
+
+    /**
+     * @return [location], or the first instruction after it that's kept if it's dropped
+     */
+    private fun resolve(location: Int): Int {
+        var ip = location
+        while (ip < code.size && removed[ip]) {
+            ip = next(ip)
+        }
+        return ip
+    }
+}
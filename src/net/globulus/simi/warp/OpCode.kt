@@ -11,6 +11,7 @@ enum class OpCode {
     POP,
     POP_UNDER, // Keeps the top value and pops N values beneath it
     DUPLICATE, // Duplicates the value at the top of the stack
+    SWAP, // Swaps the two values at the top of the stack
     SET_LOCAL,
     GET_LOCAL,
     SET_UPVALUE,
@@ -75,11 +76,54 @@ enum class OpCode {
     YIELD,
     NIL_CHECK,
     SPREAD,
+
+    // Quickened variants of arithmetic and comparison ops, never emitted by the Compiler. The Vm rewrites the generic
+    // op into one of these once it sees its operands are Longs (_LONG) or numbers with at least one Double (_DOUBLE),
+    // and rewrites it back if the guard fails.
+    ADD_LONG(ADD),
+    SUBTRACT_LONG(SUBTRACT),
+    MULTIPLY_LONG(MULTIPLY),
+    DIVIDE_LONG(DIVIDE),
+    DIVIDE_INT_LONG(DIVIDE_INT),
+    MOD_LONG(MOD),
+    LT_LONG(LT),
+    LE_LONG(LE),
+    GE_LONG(GE),
+    GT_LONG(GT),
+    EQ_LONG(EQ),
+    ADD_DOUBLE(ADD),
+    SUBTRACT_DOUBLE(SUBTRACT),
+    MULTIPLY_DOUBLE(MULTIPLY),
+    DIVIDE_DOUBLE(DIVIDE),
+    MOD_DOUBLE(MOD),
+    LT_DOUBLE(LT),
+    LE_DOUBLE(LE),
+    GE_DOUBLE(GE),
+    GT_DOUBLE(GT),
+
+    // Superinstructions, never emitted by the Compiler either. Common sequences of instructions are fused into one of
+    // these when the byte code is decoded, so that they take a single dispatch, see [Superinstructions].
+    ADD_LOCALS, // GET_LOCAL, GET_LOCAL, ADD
+    LT_LOCAL_INT_JUMP_IF_FALSE, // GET_LOCAL, CONST_INT, LT, JUMP_IF_FALSE
+    GET_PROP_ID, // CONST_ID, GET_PROP
+    INVOKE_LOCAL, // GET_LOCAL, INVOKE
+    POP_TWO, // POP, POP
     ;
 
+    constructor()
+    constructor(generic: OpCode) {
+        this.generic = generic
+    }
+
+    var generic: OpCode? = null // for quickened ops, the op they were quickened from
+        private set
+
     val byte = ordinal.toByte()
 
     companion object {
-        fun from(byte: Byte) = values()[byte.toInt()]
+        private val VALUES = values()
+
+        fun from(byte: Byte) = VALUES[byte.toInt()]
+        fun from(ordinal: Int) = VALUES[ordinal]
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package net.globulus.simi.warp
+
+/**
+ * Counts how often the [Vm] runs each pair of adjacent instructions, the first one of which falls through to the
+ * second, to find the sequences worth fusing into [Superinstructions]. Quickened ops are counted as their generic
+ * ones, as instructions are fused before they're quickened.
+ *
+ * Scripts are profiled by running them with the -p flag, which also leaves the [net.globulus.simi.warp.jit.Jit] off,
+ * as compiled code doesn't go through the Vm's dispatch loop.
+ */
+class OpCodeProfile {
+    private val counts = LongArray(OP_CODE_COUNT * OP_CODE_COUNT)
+    private var total = 0L
+
+    internal fun count(frame: CallFrame) {
+        val code = frame.code
+        val ip = frame.ip
+        if (ip >= code.size) {
+            return
+        }
+        val next = ip + frame.function.instructions.length(ip)
+        if (next < code.size) {
+            counts[generic(code[ip]) * OP_CODE_COUNT + generic(code[next])]++
+            total++
+        }
+    }
+
+    /**
+     * @return the [limit] most frequent pairs, one per line, along with their share of all the pairs that ran
+     */
+    fun report(limit: Int = DEFAULT_LIMIT): String {
+        return counts.indices
+                .filter { counts[it] > 0 }
+                .sortedByDescending { counts[it] }
+                .take(limit)
+                .joinToString("\n") {
+                    val first = OpCode.from(it / OP_CODE_COUNT)
+                    val second = OpCode.from(it % OP_CODE_COUNT)
+                    "$first $second: ${counts[it]} (${"%.2f".format(counts[it] * 100.0 / total)}%)"
+                }
+    }
+
+    private fun generic(ordinal: Int): Int {
+        return OpCode.from(ordinal).generic?.ordinal ?: ordinal
+    }
+
+    companion object {
+        private val OP_CODE_COUNT = OpCode.values().size
+        private const val DEFAULT_LIMIT = 30
+    }
+}
@@ -3,9 +3,19 @@ package net.globulus.simi.warp
 import net.globulus.simi.Constants
 import net.globulus.simi.warp.native.NativeFunction
 
-class SClass(val name: String, val kind: Kind) : Fielded {
-    override val fields = mutableMapOf<String, Any>()
+/**
+ * @param id Identifies the class among those of the same [Vm].
+ */
+class SClass(val name: String, val kind: Kind, val id: Int) : Fielded {
+    override val fields: MutableMap<String, Any> = Fields()
+
+    /**
+     * Bumped on every change to [fields], so that [InlineCache] entries know when they're stale.
+     */
+    var version = 0
+        private set
     val superclasses = mutableMapOf<String, SClass>()
+    private var ancestors = intArrayOf(id) // sorted ids of this class and all the classes it inherits from
     val annotations = mutableMapOf<String, Array<Any>>()
 
     // TODO maybe add overridden toString here?
@@ -45,21 +55,14 @@ class SClass(val name: String, val kind: Kind) : Fielded {
         }
     }
 
-    fun checkIs(other: SClass): Boolean {
-        if (this == other) {
-            return true
-        }
-        for (superclass in superclasses.values) {
-            if (superclass == other) {
-                return true
-            }
-            if (superclass.checkIs(other)) {
-                return true
-            }
-        }
-        return false
+    fun inherit(superclass: SClass) {
+        fields.putAll(superclass.fields)
+        superclasses[superclass.name] = superclass
+        ancestors = (ancestors + superclass.ancestors).distinct().sorted().toIntArray()
     }
 
+    fun checkIs(other: SClass) = ancestors.binarySearch(other.id) >= 0
+
     val mergedAnnotations: MutableMap<String, Array<Any>> get() {
         val merge = mutableMapOf<String, Array<Any>>()
         for (superclass in superclasses.values) {
@@ -73,13 +76,44 @@ class SClass(val name: String, val kind: Kind) : Fielded {
         return name
     }
 
+    private inner class Fields(private val map: MutableMap<String, Any> = mutableMapOf()) : MutableMap<String, Any> by map {
+        override fun put(key: String, value: Any): Any? {
+            version++
+            return map.put(key, value)
+        }
+
+        override fun putAll(from: Map<out String, Any>) {
+            version++
+            map.putAll(from)
+        }
+
+        override fun remove(key: String): Any? {
+            version++
+            return map.remove(key)
+        }
+
+        override fun clear() {
+            version++
+            map.clear()
+        }
+
+        override fun equals(other: Any?) = map == other
+
+        override fun hashCode() = map.hashCode()
+
+        override fun toString() = map.toString()
+    }
+
     enum class Kind {
         MODULE, ENUM, META, FINAL, REGULAR, OPEN;
 
         val byte = ordinal.toByte()
 
         companion object {
-            fun from(byte: Byte) = values()[byte.toInt()]
+            private val VALUES = values()
+
+            fun from(byte: Byte) = VALUES[byte.toInt()]
+            fun from(ordinal: Int) = VALUES[ordinal]
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package net.globulus.simi.warp
+
+import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * The event loop of a [Vm]. It keeps a queue of the fibers that are ready to run, and tracks those that are
+ * suspended, either because they called an [net.globulus.simi.warp.native.AsyncNativeFunction] or are sleeping on a
+ * timer. A suspended fiber is queued up again once the native calls back, which it may do from any thread.
+ *
+ * Fibers run to completion: the Vm only switches to the next ready fiber when the current one suspends, yields
+ * without a caller to yield to, or finishes.
+ */
+internal class Scheduler(private val clock: Clock) {
+    private val lock = ReentrantLock()
+    private val readyChanged = lock.newCondition()
+    private val ready = ArrayDeque<Ready>() // guarded by lock
+    private var suspendedCount = 0
+
+    private val timers = PriorityQueue<Timer>()
+    private var timerCount = 0L // orders timers that are due at the same time
+
+    val isIdle get() = suspendedCount == 0 && lock.withLock { ready.isEmpty() }
+
+    /**
+     * Suspends [fiber], which called an async native with [argCount] arguments.
+     * @return the callback that makes the fiber ready again, with the native's result
+     */
+    fun suspend(fiber: Fiber, argCount: Int): (Any?) -> Unit {
+        suspendedCount++
+        return { result -> makeReady(Resumption(fiber, argCount, result)) }
+    }
+
+    /**
+     * Queues up [fiber] to start running alongside the others, as a fiber no other fiber awaits.
+     */
+    fun spawn(fiber: Fiber) {
+        fiber.task = Task()
+        makeReady(Switch(fiber))
+    }
+
+    /**
+     * Queues up [fiber] again, for a spawned fiber that yielded to let the others run.
+     */
+    fun reschedule(fiber: Fiber) {
+        makeReady(Switch(fiber))
+    }
+
+    /**
+     * Invokes [callback] once [millis] have passed.
+     */
+    fun schedule(millis: Long, callback: (Any?) -> Unit) {
+        timers += Timer(clock.now + millis, timerCount++, callback)
+    }
+
+    /**
+     * Invokes [callback] with the result of the spawned [fiber] once it finishes.
+     */
+    fun join(fiber: Fiber, callback: (Any?) -> Unit) {
+        val task = fiber.task ?: throw IllegalArgumentException("$fiber wasn't spawned.")
+        if (task.finished) {
+            callback(task.result)
+        } else {
+            task.joiners += callback
+        }
+    }
+
+    /**
+     * Records the [result] of [fiber], resuming the fibers that joined it if it was spawned.
+     */
+    fun finish(fiber: Fiber, result: Any) {
+        val task = fiber.task ?: return
+        task.finished = true
+        task.result = result
+        task.joiners.forEach { it(result) }
+        task.joiners.clear()
+    }
+
+    /**
+     * @return the next fiber that's ready to run, or the next one for [fiber] if it's set, waiting for one if there
+     * isn't any yet
+     */
+    fun next(fiber: Fiber? = null): Ready {
+        lock.withLock {
+            while (true) {
+                while (timers.peek()?.let { it.time <= clock.now } == true) {
+                    timers.poll().callback(Nil)
+                }
+                val next = if (fiber == null) ready.pollFirst() else ready.firstOrNull { it.fiber === fiber }
+                if (next != null) {
+                    ready.remove(next)
+                    if (next is Resumption) {
+                        suspendedCount--
+                    }
+                    return next
+                }
+                if (suspendedCount == 0) {
+                    throw IllegalStateException("No fiber to resume.")
+                }
+                clock.await(readyChanged, timers.peek()?.let { it.time - clock.now })
+            }
+        }
+    }
+
+    private fun makeReady(next: Ready) {
+        lock.withLock {
+            ready += next
+            readyChanged.signal()
+        }
+    }
+
+    sealed class Ready(val fiber: Fiber)
+
+    /**
+     * Switches to a spawned fiber, starting it if it's new.
+     */
+    class Switch(fiber: Fiber) : Ready(fiber)
+
+    /**
+     * Resumes a fiber that called an async native, which completed with [result].
+     */
+    class Resumption(fiber: Fiber, val argCount: Int, val result: Any?) : Ready(fiber)
+
+    class Task {
+        var finished = false
+        var result: Any? = null
+        val joiners = mutableListOf<(Any?) -> Unit>()
+    }
+
+    private class Timer(val time: Long, val order: Long, val callback: (Any?) -> Unit) : Comparable<Timer> {
+        override fun compareTo(other: Timer): Int {
+            return if (time == other.time) order.compareTo(other.order) else time.compareTo(other.time)
+        }
+    }
+}
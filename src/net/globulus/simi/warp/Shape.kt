@@ -0,0 +1,41 @@
+package net.globulus.simi.warp
+
+/**
+ * The hidden class of an [Instance]: maps field names to indexes of the slots the instance keeps its field values
+ * in. Shapes are immutable and shared - all instances that got the same fields in the same order have the same
+ * shape, as adding a field transitions the instance to the child shape that has it.
+ */
+internal class Shape private constructor(parent: Shape?, key: String?) {
+    val keys: Array<String> = if (parent == null) NO_KEYS else arrayOf(*parent.keys, key!!)
+    val size get() = keys.size
+    private val indexes: Map<String, Int> = keys.withIndex().associate { it.value to it.index }
+    private val transitions = mutableMapOf<String, Shape>()
+
+    fun indexOf(key: String): Int {
+        return indexes[key] ?: -1
+    }
+
+    /**
+     * Returns the shape with the key added after all the keys of this one.
+     */
+    @Synchronized // Native callbacks may create instances off of the VM thread
+    fun with(key: String): Shape {
+        return transitions.getOrPut(key) { Shape(this, key) }
+    }
+
+    override fun toString(): String {
+        return keys.joinToString(prefix = "Shape(", postfix = ")")
+    }
+
+    companion object {
+        private val NO_KEYS = arrayOf<String>()
+
+        val EMPTY = Shape(null, null)
+
+        /**
+         * Instances with more fields than this are used as maps rather than objects, so they're switched to
+         * dictionary mode instead of growing the shape tree.
+         */
+        const val MAX_SIZE = 32
+    }
+}
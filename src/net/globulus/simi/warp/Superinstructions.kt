@@ -0,0 +1,102 @@
+package net.globulus.simi.warp
+
+import net.globulus.simi.warp.OpCode.*
+
+/**
+ * Fuses the sequences of decoded [Instructions] that run the most into single superinstructions, so that the [Vm]
+ * dispatches once for all of them. The sequences were picked by profiling scripts with the -p flag, which prints the
+ * pairs of ops that run most often, see [OpCodeProfile].
+ *
+ * A sequence is only fused if no jump lands in the middle of it, and instructions that close the scope of a RETURN
+ * are left alone, as the Vm runs them as a part of it.
+ */
+internal class Superinstructions(private val instructions: Instructions) {
+    private val code = instructions.code
+    private val removed = BooleanArray(code.size)
+    private val replaced = mutableMapOf<Int, IntArray>()
+    private val targets = BooleanArray(code.size + 1) // locations that jumps and procs refer to
+
+    fun fuse(): Instructions {
+        var ip = 0
+        while (ip < code.size) {
+            for (operand in instructions.locationOperands(ip)) {
+                targets[code[ip + operand]] = true
+            }
+            ip = next(ip)
+        }
+        ip = 0
+        while (ip < code.size) {
+            ip = if (code[ip] == RETURN.ordinal) {
+                skip(next(ip), code[ip + 1])
+            } else {
+                fuse(ip)
+            }
+        }
+        return if (replaced.isEmpty()) instructions else instructions.rewrite(removed, replaced)
+    }
+
+    /**
+     * Fuses the sequence starting at [ip], if there's one.
+     * @return the location of the first instruction after it
+     */
+    private fun fuse(ip: Int): Int {
+        val second = next(ip) // only read once a sequence matches, as it may be past the end of the code
+        return when {
+            matches(ip, GET_LOCAL, CONST_INT, LT, JUMP_IF_FALSE) -> {
+                val jump = skip(second, 2)
+                replace(ip, 4, LT_LOCAL_INT_JUMP_IF_FALSE, code[ip + 1], code[second + 1], code[jump + 1])
+            }
+            matches(ip, GET_LOCAL, GET_LOCAL, ADD) -> replace(ip, 3, ADD_LOCALS, code[ip + 1], code[second + 1])
+            matches(ip, GET_LOCAL, INVOKE) -> {
+                replace(ip, 2, INVOKE_LOCAL, code[ip + 1], code[second + 1], code[second + 2])
+            }
+            matches(ip, CONST_ID, GET_PROP) -> replace(ip, 2, GET_PROP_ID, code[ip + 1])
+            matches(ip, POP, POP) -> replace(ip, 2, POP_TWO)
+            else -> second
+        }
+    }
+
+    /**
+     * @return true if the instructions starting at [ip] are [opCodes], and only the first one is a jump target
+     */
+    private fun matches(ip: Int, vararg opCodes: OpCode): Boolean {
+        var location = ip
+        for ((i, opCode) in opCodes.withIndex()) {
+            if (location >= code.size || code[location] != opCode.ordinal || (i > 0 && targets[location])) {
+                return false
+            }
+            location = next(location)
+        }
+        return true
+    }
+
+    /**
+     * Replaces the [count] instructions starting at [ip] with [opCode] and its [operands].
+     * @return the location of the first instruction after them
+     */
+    private fun replace(ip: Int, count: Int, opCode: OpCode, vararg operands: Int): Int {
+        replaced[ip] = intArrayOf(opCode.ordinal, *operands)
+        var location = next(ip)
+        repeat(count - 1) {
+            removed[location] = true
+            location = next(location)
+        }
+        return location
+    }
+
+    /**
+     * @return the location [count] instructions after [ip], or the end of the code if it comes first
+     */
+    private fun skip(ip: Int, count: Int): Int {
+        var location = ip
+        repeat(count) {
+            if (location >= code.size) {
+                return location
+            }
+            location = next(location)
+        }
+        return location
+    }
+
+    private fun next(ip: Int) = ip + instructions.length(ip)
+}
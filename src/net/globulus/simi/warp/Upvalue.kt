@@ -1,18 +1,40 @@
 package net.globulus.simi.warp
 
-import java.lang.ref.WeakReference
-
-class Upvalue(var location: WeakReference<Any>,
-              val fiberName: String,
-              var closed: Boolean,
-              var next: Upvalue?
+/**
+ * A variable captured by a closure. While the variable's scope is alive, the upvalue is open and reads and writes
+ * the [slot] of the [fiber] whose stack holds it. Once the scope ends, the upvalue is closed and holds the value
+ * itself.
+ */
+class Upvalue(private var fiber: Fiber?,
+              val slot: Int,
+              var next: Upvalue? // the next open upvalue of the same fiber, in a list ordered by slot, descending
 ) {
-    val sp: Int get() {
-        val loc = location.get()!!
-        if (loc is Int) {
-            return loc
+    private var value: Any? = null
+
+    /**
+     * Creates an upvalue that's closed from the start, for a variable that's captured by value.
+     */
+    constructor(value: Any) : this(null, -1, null) {
+        this.value = value
+    }
+
+    fun get(): Any {
+        val fiber = this.fiber
+        return if (fiber != null) fiber[slot]!! else value!!
+    }
+
+    fun set(value: Any) {
+        val fiber = this.fiber
+        if (fiber != null) {
+            fiber[slot] = value
         } else {
-            throw IllegalStateException("Trying to read Upvalue sp when it's already closed")
+            this.value = value
         }
     }
-}
\ No newline at end of file
+
+    internal fun close() {
+        value = fiber!![slot]
+        fiber = null
+        next = null
+    }
+}
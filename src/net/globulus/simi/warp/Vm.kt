@@ -3,78 +3,119 @@ package net.globulus.simi.warp
 import net.globulus.simi.Constants
 import net.globulus.simi.warp.OpCode.*
 import net.globulus.simi.warp.debug.Debugger
+import net.globulus.simi.warp.jit.Jit
 import net.globulus.simi.warp.native.AsyncNativeFunction
 import net.globulus.simi.warp.native.NativeFunc
 import net.globulus.simi.warp.native.NativeFunction
-import java.lang.ref.WeakReference
-import java.nio.ByteBuffer
 import java.util.*
-import java.util.concurrent.CountDownLatch
 import kotlin.math.round
 
-class Vm {
+class Vm(clock: Clock = Clock.SYSTEM) {
     internal lateinit var fiber: Fiber
-    private var openUpvalues = mutableMapOf<String, Upvalue>()
     private val annotationBuffer = mutableListOf<Any>()
     private var nonFinalizedClasses = Stack<Int>()
 
     private var debugger: Debugger? = null
+    private var jit: Jit? = null
+    internal var opCodeProfile: OpCodeProfile? = null // counts the instructions that run if set before interpret
+    internal var reportsJitFailures = false // prints the functions that the Jit can't compile, and why
+
+    internal val scheduler = Scheduler(clock)
+    private var nestedRunCount = 0
+
+    internal val context = VmContext(this)
+    private val declaredClasses = context.declaredClasses
+    private var classCount = 0
+    // Looked up on first use, as it's only declared once Core loads
+    private val exceptionClass by lazy(LazyThreadSafetyMode.NONE) { declaredClasses[Constants.CLASS_EXCEPTION]!! }
 
     fun interpret(input: Fiber, debugMode: Boolean) {
-        instance = this
         if (debugMode) {
             debugger = Debugger(this)
+        } else if (opCodeProfile == null) { // Compiled code doesn't stop at breakpoints or get profiled
+            jit = Jit(reportsJitFailures)
         }
         fiber = input
         push(input)
         try {
             await(true, 0)
+            run(0)
         } catch (ignored: IllegalStateException) {
             val a = 5
         } // Silently abort the program
-        instance = null
     }
 
-    private fun run(breakAtFp: Int, predicate: (() -> Boolean)? = null) {
-        loop@ while (predicate?.invoke() != false) {
+    /**
+     * The dispatch loop. Calls and returns only push and pop [CallFrame]s and the loop carries on, so a Simi call
+     * never adds a JVM stack frame. The loop exits once a RETURN brings the fiber back to [breakAtFp], which is
+     * how [runNested] waits for the result of a call made from Kotlin code.
+     *
+     * Awaiting and yielding fibers just switches [fiber], whose frames are kept on its own call stack, so the
+     * loop simply carries on with the fiber that was switched to.
+     *
+     * Frames of functions that the [Jit] compiled run their [CompiledCode] first, which returns here to have the
+     * loop execute the instructions it doesn't handle itself, or once a call or a fiber switch moved on to
+     * another frame.
+     */
+    private fun run(breakAtFp: Int) {
+        val breakAtFiber = fiber
+        loop@ while (true) {
             debugger?.triggerBreakpoint()
+            val frame = fiber.frame
+            opCodeProfile?.count(frame)
+            val compiled = frame.function.compiled
+            if (compiled != null && !compiled.execute(this, frame)) {
+                continue@loop
+            }
             val code = nextCode
             when (code) {
                 TRUE -> push(true)
                 FALSE -> push(false)
-                CONST_INT -> push(nextLong)
-                CONST_FLOAT -> push(nextDouble)
-                CONST_ID -> push(nextString)
+                CONST_INT -> pushLong(fiber.frame.constants[nextInt] as Long)
+                CONST_FLOAT -> pushDouble(fiber.frame.constants[nextInt] as Double)
                 CONST -> pushConst()
+                CONST_ID -> push(nextString)
                 NIL -> push(Nil)
                 POP -> fiber.sp--
-                POP_UNDER -> {
-                    val value = pop()
-                    fiber.sp -= nextInt
-                    push(value)
-                }
-                DUPLICATE -> push(peek())
-                SET_LOCAL -> setVar()
+                POP_UNDER -> popUnder(nextInt)
+                DUPLICATE -> duplicate()
+                SET_LOCAL -> setVar(nextInt)
                 GET_LOCAL -> getVar(nextInt)
-                SET_UPVALUE -> fiber.frame.closure.upvalues[nextInt]!!.location = WeakReference(fiber.sp - 1) // -1 because we need to point at an actual slot
-                GET_UPVALUE -> push(readUpvalue(fiber.frame.closure.upvalues[nextInt]!!))
-                SET_PROP -> setProp()
-                GET_PROP -> getProp()
+                SET_UPVALUE -> setUpvalue(nextInt)
+                GET_UPVALUE -> getUpvalue(nextInt)
+                SET_PROP -> setProp(inlineCache)
+                GET_PROP -> getProp(inlineCache)
                 UPDATE_PROP -> updateProp()
+                SWAP -> swap()
                 INVERT -> invert()
                 NEGATE -> negate()
                 ADD -> add()
                 SUBTRACT, MULTIPLY, DIVIDE, DIVIDE_INT, MOD, LE, LT, GE, GT -> binaryOpOnStack(code)
                 EQ -> checkEquality(code)
+                ADD_LONG -> addLongs()
+                SUBTRACT_LONG -> subtractLongs()
+                MULTIPLY_LONG -> multiplyLongs()
+                DIVIDE_LONG -> divideLongs()
+                DIVIDE_INT_LONG -> divideIntLongs()
+                MOD_LONG -> modLongs()
+                LT_LONG -> ltLongs()
+                LE_LONG -> leLongs()
+                GE_LONG -> geLongs()
+                GT_LONG -> gtLongs()
+                EQ_LONG -> eqLongs()
+                ADD_DOUBLE -> addDoubles()
+                SUBTRACT_DOUBLE -> subtractDoubles()
+                MULTIPLY_DOUBLE -> multiplyDoubles()
+                DIVIDE_DOUBLE -> divideDoubles()
+                MOD_DOUBLE -> modDoubles()
+                LT_DOUBLE -> ltDoubles()
+                LE_DOUBLE -> leDoubles()
+                GE_DOUBLE -> geDoubles()
+                GT_DOUBLE -> gtDoubles()
                 IS -> checkIs()
-                HAS -> {
-                    val b = fiber.stack[fiber.sp - 1]
-                    fiber.stack[fiber.sp - 1] = fiber.stack[fiber.sp - 2]
-                    fiber.stack[fiber.sp - 2] = b
-                    invoke(Constants.HAS, 1)
-                }
+                HAS -> has()
                 PRINT -> println(stringify(pop()))
-                JUMP -> buffer.position(nextInt)
+                JUMP -> jump(nextInt)
                 JUMP_IF_FALSE -> jumpIf { isFalsey(it) }
                 JUMP_IF_NIL -> jumpIf { it == Nil }
                 JUMP_IF_EXCEPTION -> jumpIf { isException(it) }
@@ -83,29 +124,38 @@ class Vm {
                     call(peek(argCount), argCount)
                 }
                 INVOKE -> {
+                    val cache = inlineCache
                     val name = nextString
                     val argCount = nextInt
-                    invoke(name, argCount)
+                    invoke(name, argCount, cache = cache)
                 }
                 CLOSURE -> closure(false)
                 FIBER -> closure(true)
-                PROC -> push(Proc(nextInt, nextInt))
+                PROC -> {
+                    val end = fiber.frame.ip - 1
+                    val proc = Proc(nextInt, nextInt)
+                    if (fiber.frame.procEnd == end) { // reached the end of a proc body, go back to the call site
+                        fiber.fp--
+                    } else {
+                        push(proc)
+                    }
+                }
                 CLOSE_UPVALUE -> closeUpvalue()
                 RETURN -> {
-                    if (doReturn(breakAtFp)) {
+                    if (doReturn(breakAtFiber, breakAtFp)) {
                         break@loop
                     }
                 }
-                CLASS -> declareClass(SClass.Kind.from(nextByte), nextString)
+                CLASS -> declareClass(SClass.Kind.from(nextInt), nextString)
                 INHERIT -> inherit()
                 MIXIN, EXTEND_MIXIN -> mixin(code == EXTEND_MIXIN)
                 METHOD, EXTEND_METHOD -> defineMethod(nextString, code == EXTEND_METHOD)
-                NATIVE_METHOD, EXTEND_NATIVE_METHOD -> defineNativeMethod(nextString, currentFunction.constants[nextInt] as NativeFunc, code == EXTEND_NATIVE_METHOD)
+                NATIVE_METHOD, EXTEND_NATIVE_METHOD -> defineNativeMethod(nextString, fiber.frame.constants[nextInt] as NativeFunc, code == EXTEND_NATIVE_METHOD)
                 FIELD -> defineField(nextString)
                 INNER_CLASS -> {
-                    val kind = SClass.Kind.from(nextByte)
+                    val kind = SClass.Kind.from(nextInt)
                     val name = nextString
-                    val klass = SClass(name, kind)
+                    val klass = SClass(name, kind, classCount++)
                     val outerClass = currentNonFinalizedClass
                     // Inner classes have qualified names such as Range.Iterator, but we want to store the
                     // field with the last component name only
@@ -133,10 +183,13 @@ class Vm {
                     } ?: throw runtimeError("Class ${klass.name} doesn't inherit from $superclass!")
                 }
                 GET_SUPER -> getSuper()
-                SUPER_INVOKE -> invokeSuper(nextString, nextInt)
+                SUPER_INVOKE -> {
+                    val cache = inlineCache
+                    invokeSuper(nextString, nextInt, cache)
+                }
                 SELF_FN -> push(fiber.frame.closure.function)
-                OBJECT -> objectLiteral(nextByte == 1.toByte(), nextInt)
-                LIST -> listLiteral(nextByte == 1.toByte(), nextInt)
+                OBJECT -> objectLiteral(nextInt == 1, nextInt)
+                LIST -> listLiteral(nextInt == 1, nextInt)
                 START_COMPREHENSION -> push(ObjectComprehension())
                 ADD_TO_COMPREHENSION -> {
                     val value = pop()
@@ -158,7 +211,7 @@ class Vm {
                 GET_ANNOTATIONS -> {
                     val value = pop()
                     (value as? SClass)?.let {
-                        push(it.mergedAnnotations.toSimiObject())
+                        push(with(context) { it.mergedAnnotations.toSimiObject() })
                     } ?: throw runtimeError("Getting annotations only works on a Class!", value)
                 }
                 GU -> gu(currentFunction.debugInfo?.compiler)
@@ -166,12 +219,34 @@ class Vm {
                 YIELD -> yield(pop())
                 NIL_CHECK -> {
                     if (peek() == Nil) {
-                        fiber.stack[fiber.sp - 1] = Instance(declaredClasses[Constants.EXCEPTION_NIL_REFERENCE]!!, false)
+                        fiber[fiber.sp - 1] = Instance(declaredClasses[Constants.EXCEPTION_NIL_REFERENCE]!!, false)
+                    }
+                }
+                ADD_LOCALS -> addLocals(nextInt, nextInt)
+                LT_LOCAL_INT_JUMP_IF_FALSE -> {
+                    val sp = nextInt
+                    val constant = fiber.frame.constants[nextInt] as Long
+                    val location = nextInt
+                    if (ltLocalInt(sp, constant)) {
+                        jump(location)
                     }
                 }
+                GET_PROP_ID -> {
+                    val cache = inlineCache
+                    getProp(cache, nextString)
+                }
+                INVOKE_LOCAL -> {
+                    val cache = inlineCache
+                    getVar(nextInt)
+                    val name = nextString
+                    val argCount = nextInt
+                    invoke(name, argCount, cache = cache)
+                }
+                POP_TWO -> fiber.sp -= 2
                 SPREAD -> {
                     val value = pop()
                     (value as? ListInstance)?.let {
+                        ensureStack(it.items.size)
                         for (item in it.items) {
                             push(item)
                         }
@@ -181,30 +256,31 @@ class Vm {
         }
     }
 
+    /**
+     * Switches to the fiber at the top of the stack, either starting it anew or resuming it past its last yield.
+     */
     private fun await(isRoot: Boolean, argCount: Int) {
         val caller = if (isRoot) null else fiber
         fiber = peek(argCount) as Fiber
         fiber.caller = caller
-        try {
-            if (isRoot || fiber.state == Fiber.State.NEW) {
-                fiber.state = Fiber.State.STARTED
-                if (!isRoot) {
-                    push(fiber.closure)
-                }
-                moveArgsFromCaller(argCount)
-                callClosure(fiber.closure, argCount)
-            } else {
-                moveArgsFromCaller(argCount)
-                run(0)
+        if (isRoot || fiber.state == Fiber.State.NEW) {
+            fiber.state = Fiber.State.STARTED
+            if (!isRoot) {
+                push(fiber.closure)
             }
-        } catch (yield: Yield) { }
+            moveArgsFromCaller(argCount)
+            callClosure(fiber.closure, argCount)
+        } else {
+            moveArgsFromCaller(argCount)
+        }
     }
 
     private fun moveArgsFromCaller(argCount: Int) {
         fiber.caller?.let {
+            fiber.ensureStackSize(argCount + 1)
             for (i in 0 until argCount) {
                 // copy args to the top (+1 for closure) of the fiber stack
-                fiber.stack[i + 1] = it.stack[it.sp - argCount + i]
+                fiber[i + 1] = it[it.sp - argCount + i]
             }
             it.sp -= argCount // remove args from caller stack
             // if this is the first invocation and the the fiber stack is empty, bump its sp
@@ -214,31 +290,90 @@ class Vm {
         }
     }
 
+    /**
+     * Switches back to the caller fiber, replacing the awaited fiber on its stack with the value. The current fiber
+     * keeps its frames, so awaiting it again resumes right after the YIELD.
+     */
     private fun yield(value: Any) {
-        closeUpvalues(fiber.frame.sp, fiber.name)
+        fiber.trim()
+        if (fiber.caller == null) { // A spawned fiber yields to let the others run
+            if (nestedRunCount == 0) {
+                scheduler.reschedule(fiber)
+                resume(scheduler.next())
+            }
+            return
+        }
         fiber = fiber.caller!!
         fiber.sp-- // pop the fiber from the caller stack
         push(value)
-        throw Yield()
     }
 
-    private fun runLocal() {
-        run(fiber.fp - 1)
+    /**
+     * Used by Kotlin code that needs the result of a call right away (e.g, [stringify] invoking toString): if the
+     * call pushed a frame, runs the loop until that frame returns, leaving the result at the top of the stack.
+     */
+    private fun runNested(fpBeforeCall: Int) {
+        if (fiber.fp > fpBeforeCall) {
+            nestedRunCount++
+            try {
+                run(fpBeforeCall)
+            } finally {
+                nestedRunCount--
+            }
+        }
+    }
+
+    /**
+     * Calls the callee and drops its return value once it's done, for calls that the code being run doesn't see,
+     * such as overridden setters.
+     */
+    private fun callDiscardingResult(callee: Any, argCount: Int) {
+        val fp = fiber.fp
+        call(callee, argCount)
+        if (fiber.fp > fp) {
+            fiber.frame.discardsResult = true
+        } else {
+            fiber.sp--
+        }
     }
 
     private fun pushConst() {
-        push(currentFunction.constants[nextInt])
+        push(fiber.frame.constants[nextInt])
     }
 
-    private fun setVar() {
-        fiber.stack[fiber.frame.sp + nextInt] = pop()
+    internal fun popUnder(count: Int) {
+        val top = fiber.sp - 1
+        val bottom = top - count
+        closeUpvalues(bottom)
+        fiber.copy(top, bottom)
+        fiber.sp = bottom + 1
+        fiber.clear(fiber.sp, top + 1)
     }
 
-    private fun getVar(sp: Int) {
-        push(fiber.stack[fiber.frame.sp + sp]!!)
+    internal fun duplicate() {
+        fiber.copy(fiber.sp - 1, fiber.sp)
+        fiber.sp++
     }
 
-    private fun setProp() {
+    internal fun setVar(sp: Int) {
+        fiber.sp--
+        fiber.copy(fiber.sp, fiber.frame.sp + sp)
+    }
+
+    internal fun getVar(sp: Int) {
+        fiber.copy(fiber.frame.sp + sp, fiber.sp)
+        fiber.sp++
+    }
+
+    internal fun setUpvalue(index: Int) {
+        fiber.frame.closure.upvalues[index]!!.set(pop())
+    }
+
+    internal fun getUpvalue(index: Int) {
+        push(fiber.frame.closure.upvalues[index]!!.get())
+    }
+
+    internal fun setProp(cache: InlineCache) {
         val value = pop()
         val prop = pop()
         val obj = pop()
@@ -253,65 +388,118 @@ class Vm {
             bindMethod(obj, obj.klass, obj.klass.overriddenSet, Constants.SET)
             push(prop)
             push(value)
-            call(peek(2), 2)
-            fiber.sp-- // A setter is still a statement so we need to remove the call result from the fiber.stack
+            callDiscardingResult(peek(2), 2) // A setter is still a statement so the call result is discarded
         } else {
-            setPropRaw(obj, prop, value)
+            setPropRaw(obj, prop, value, cache)
         }
     }
 
-    private fun setPropRaw(obj: Any?, prop: Any, value: Any) {
-        getFieldsOrThrow(obj)[stringify(prop)] = value
+    private fun setPropRaw(obj: Any?, prop: Any, value: Any, cache: InlineCache? = null) {
+        val name = stringify(prop)
+        val shape = (obj as? Instance)?.shape
+        if (shape != null && cache != null) {
+            cache.putField(obj, shape, name, value)
+        } else {
+            getFieldsOrThrow(obj)[name] = value
+        }
     }
 
-    private fun getProp() {
-        val nameValue = pop()
-        val obj = boxIfNotInstance(0)
-        fiber.sp--
-        if (obj is Instance && obj.klass.overriddenGet != null) {
-            fiber.sp++ // Just to compensate for bindMethod's fiber.sp--
-            bindMethod(obj, obj.klass, obj.klass.overriddenGet, Constants.GET)
+    /**
+     * Gets the prop named [nameValue] of the object at the top of the stack. The name is popped first unless it's
+     * known up front, as it is for GET_PROP_ID.
+     */
+    internal fun getProp(cache: InlineCache, nameValue: Any = pop()) {
+        // Raw Num, String and Function values are their own receivers, they're not boxed
+        val metaClass = metaClassAt(fiber.sp - 1)
+        val obj = if (metaClass != null) pop() else boxIfNotInstance(0).also { fiber.sp-- }
+        val klass = metaClass ?: (obj as? Instance)?.klass
+        // String.get resolves String keys as regular props, so raw strings can skip the call
+        val getter = if (metaClass != null && nameValue is String) null else klass?.overriddenGet
+        if (getter != null) {
+            push(obj) // Just to compensate for bindMethod's fiber.sp--
+            bindMethod(obj, klass!!, getter, Constants.GET)
             push(nameValue)
             call(peek(1), 1)
         } else {
-            getPropRaw(obj, stringify(nameValue))
+            getPropRaw(obj, stringify(nameValue), cache)
         }
     }
 
-    internal fun getPropRaw(obj: Any?, name: String) {
+    /**
+     * [obj, prop, value] -> [obj, prop, value, obj, prop], so that the GET_PROP, SWAP, op and SET_PROP emitted
+     * after UPDATE_PROP can combine the current value with the new one and store it back.
+     */
+    internal fun updateProp() {
+        push(peek(2))
+        push(peek(2))
+    }
+
+    internal fun getPropRaw(obj: Any?, name: String, cache: InlineCache? = null) {
         val prop = when (obj) {
             Nil -> null
-            is Instance -> obj.fields[name] ?: obj.klass.fields[name]
-            is SClass -> obj.fields[name]
-            else -> throw runtimeError("Only instances can have fields!", obj)
+            is Instance -> getOwnField(obj, name, cache) ?: lookUp(obj.klass, name, cache)
+            is SClass -> lookUp(obj, name, cache)
+            else -> {
+                val klass = metaClassOf(obj!!) ?: throw runtimeError("Only instances can have fields!", obj)
+                rawValueField(obj, name) ?: lookUp(klass, name, cache)
+            }
         }
         push(prop ?: Nil)
         if (prop != null) {
-            bindMethod(obj, getSClass(obj), prop, name)
+            bindMethod(obj, getSClass(obj), prop, name, cache)
+        }
+    }
+
+    private fun getOwnField(instance: Instance, name: String, cache: InlineCache?): Any? {
+        val shape = instance.shape
+        return if (shape != null && cache != null) {
+            cache.getField(instance, shape, name)
+        } else {
+            instance.getField(name)
         }
     }
 
     /**
-     * The algorithm is as follows:
-     * 1. At the beginning, the top contains the right-hand side value and the prepared, unexecuted getter. Pop the value and keep references to object and prop for setting.
-     * 2. getProp() to convert the prop and obj to a single value.
-     * 3. Add the value again to the top, then invoke a single run with the next code, which the the op data of UPDATE_PROP. It'll pop the value and the prop and combine them into a single value.
-     * 4. Pop this combined value and prepare for a setter - push the object, the prop and finally the combined value again.
-     * 5. Invoke setProp() to store it where it belongs.
+     * The fields that boxed Num, String and Function instances have of their own.
      */
-    private fun updateProp() {
-        var value = pop()
-        val prop = peek()
-        val obj = peek(1)
-        getProp()
-        push(value)
-        val nextBufferPos = buffer.position() + 1
-        run(fiber.fp) { buffer.position() < nextBufferPos }
-        value = pop()
-        push(obj)
-        push(prop)
-        push(value)
-        setProp()
+    private fun rawValueField(value: Any, name: String): Any? {
+        return when {
+            name == Constants.PRIVATE -> value
+            value is String && name == "len" -> value.length.toLong()
+            value is Closure && name == Constants.NAME -> value.function.name
+            value is Closure && name == Constants.ARITY -> value.function.arity.toLong()
+            else -> null
+        }
+    }
+
+    /**
+     * Returns the class of raw values of the type, whose methods are invoked on them directly, without boxing.
+     */
+    private fun metaClassOf(value: Any): SClass? {
+        return when (value) {
+            is Long, is Double -> declaredClasses[Constants.CLASS_NUM]
+            is String -> declaredClasses[Constants.CLASS_STRING]
+            is Closure -> declaredClasses[Constants.CLASS_FUNCTION]
+            else -> null
+        }
+    }
+
+    /**
+     * Same as [metaClassOf], for a stack slot, without boxing numbers in it.
+     */
+    private fun metaClassAt(loc: Int): SClass? {
+        return if (fiber.isNumber(loc)) {
+            declaredClasses[Constants.CLASS_NUM]
+        } else {
+            fiber.refs[loc]?.let { metaClassOf(it) }
+        }
+    }
+
+    /**
+     * Looks the name up in the fields of the class, going through the call site's inline cache if it has one.
+     */
+    private fun lookUp(klass: SClass, name: String, cache: InlineCache?): Any? {
+        return if (cache != null) cache.lookUp(klass, name) else klass.fields[name]
     }
 
     private fun getSuper() {
@@ -324,20 +512,28 @@ class Vm {
         }
     }
 
-    private fun isFalsey(o: Any): Boolean {
+    internal fun isFalsey(o: Any): Boolean {
         return o == false
     }
 
-    private fun isException(o: Any?): Boolean {
-        return o is Instance && o.klass.checkIs(declaredClasses[Constants.CLASS_EXCEPTION]!!)
+    internal fun isException(o: Any?): Boolean {
+        return o is Instance && o.klass.checkIs(exceptionClass)
     }
 
-    private fun invert() {
+    internal fun invert() {
         val a = unbox(pop())
         push(isFalsey(a))
     }
 
-    private fun negate() {
+    internal fun negate() {
+        val top = fiber.sp - 1
+        if (fiber.isLong(top)) {
+            fiber.prims[top] = -fiber.prims[top]
+            return
+        } else if (fiber.isDouble(top)) {
+            fiber.setDouble(top, -fiber.getDouble(top))
+            return
+        }
         val a = unbox(pop())
         if (a is Long) {
             push(-a)
@@ -346,7 +542,10 @@ class Vm {
         }
     }
 
-    private fun add() {
+    internal fun add(quickens: Boolean = true) {
+        if (binaryOpOnPrimitives(ADD, quickens)) {
+            return
+        }
         val b = unbox(pop())
         val a = unbox(pop())
         push(when (a) {
@@ -356,7 +555,7 @@ class Vm {
                     a += b
                     a
                 } else {
-                    mutabilityLockException()
+                    context.mutabilityLockException()
                 }
             }
             else -> {
@@ -369,12 +568,218 @@ class Vm {
         })
     }
 
-    private fun binaryOpOnStack(opCode: OpCode) {
+    internal fun binaryOpOnStack(opCode: OpCode, quickens: Boolean = true) {
+        if (binaryOpOnPrimitives(opCode, quickens)) {
+            return
+        }
         val b = pop()
         val a = pop()
         push(binaryOp(opCode, a, b))
     }
 
+    /**
+     * The fast path for arithmetic and comparison, taken when both operands sit unboxed in the primitive lane.
+     * The result replaces the operands in place, so nothing gets boxed. The op being executed is quickened unless
+     * [quickens] is false, for superinstructions whose op isn't an instruction of its own.
+     */
+    private fun binaryOpOnPrimitives(opCode: OpCode, quickens: Boolean): Boolean {
+        val f = fiber
+        val b = f.sp - 1
+        val a = b - 1
+        val onLongs = f.isLong(a) && f.isLong(b)
+        if (onLongs) {
+            val x = f.prims[a]
+            val y = f.prims[b]
+            when (opCode) {
+                ADD -> f.prims[a] = x + y
+                SUBTRACT -> f.prims[a] = x - y
+                MULTIPLY -> f.prims[a] = x * y
+                DIVIDE -> setIntIfPossible(a, x * 1.0 / y)
+                DIVIDE_INT -> f.prims[a] = x / y
+                MOD -> f.prims[a] = x % y
+                LT -> f.refs[a] = x < y
+                LE -> f.refs[a] = x <= y
+                GE -> f.refs[a] = x >= y
+                GT -> f.refs[a] = x > y
+                else -> return false
+            }
+        } else if (f.isNumber(a) && f.isNumber(b)) {
+            val x = f.getDouble(a)
+            val y = f.getDouble(b)
+            when (opCode) {
+                ADD -> setIntIfPossible(a, x + y)
+                SUBTRACT -> setIntIfPossible(a, x - y)
+                MULTIPLY -> setIntIfPossible(a, x * y)
+                DIVIDE -> setIntIfPossible(a, x / y)
+                MOD -> setIntIfPossible(a, x % y)
+                LT -> f.refs[a] = x < y
+                LE -> f.refs[a] = x <= y
+                GE -> f.refs[a] = x >= y
+                GT -> f.refs[a] = x > y
+                else -> return false
+            }
+        } else {
+            return false
+        }
+        f.sp = b
+        if (quickens) {
+            quicken(opCode, onLongs)
+        }
+        return true
+    }
+
+    /**
+     * Executes ADD_LOCALS, adding the locals at [a] and [b] right away if they're both Longs.
+     */
+    internal fun addLocals(a: Int, b: Int) {
+        val f = fiber
+        val x = f.frame.sp + a
+        val y = f.frame.sp + b
+        if (f.isLong(x) && f.isLong(y)) {
+            pushLong(f.prims[x] + f.prims[y])
+        } else {
+            getVar(a)
+            getVar(b)
+            add(false)
+        }
+    }
+
+    /**
+     * Executes LT_LOCAL_INT_JUMP_IF_FALSE, pushing whether the local at [sp] is less than [constant].
+     * @return true if the jump should be taken
+     */
+    internal fun ltLocalInt(sp: Int, constant: Long): Boolean {
+        val f = fiber
+        val x = f.frame.sp + sp
+        if (f.isLong(x)) {
+            val result = f.prims[x] < constant
+            push(result)
+            return !result
+        }
+        getVar(sp)
+        pushLong(constant)
+        binaryOpOnStack(LT, false)
+        return isFalsey(peek())
+    }
+
+    /**
+     * Rewrites the generic op being executed into its variant for the operand types that were just seen.
+     */
+    private fun quicken(opCode: OpCode, onLongs: Boolean) {
+        val quickened = if (onLongs) {
+            when (opCode) {
+                ADD -> ADD_LONG
+                SUBTRACT -> SUBTRACT_LONG
+                MULTIPLY -> MULTIPLY_LONG
+                DIVIDE -> DIVIDE_LONG
+                DIVIDE_INT -> DIVIDE_INT_LONG
+                MOD -> MOD_LONG
+                LT -> LT_LONG
+                LE -> LE_LONG
+                GE -> GE_LONG
+                GT -> GT_LONG
+                EQ -> EQ_LONG
+                else -> return
+            }
+        } else {
+            when (opCode) {
+                ADD -> ADD_DOUBLE
+                SUBTRACT -> SUBTRACT_DOUBLE
+                MULTIPLY -> MULTIPLY_DOUBLE
+                DIVIDE -> DIVIDE_DOUBLE
+                MOD -> MOD_DOUBLE
+                LT -> LT_DOUBLE
+                LE -> LE_DOUBLE
+                GE -> GE_DOUBLE
+                GT -> GT_DOUBLE
+                else -> return
+            }
+        }
+        with(fiber.frame) {
+            code[ip - 1] = quickened.ordinal
+        }
+    }
+
+    /**
+     * Rewrites a quickened op whose guard failed back into the generic one, and executes that instead.
+     */
+    private fun deoptimize(quickened: OpCode) {
+        val generic = quickened.generic!!
+        with(fiber.frame) {
+            code[ip - 1] = generic.ordinal
+        }
+        when (generic) {
+            ADD -> add()
+            EQ -> checkEquality(generic)
+            else -> binaryOpOnStack(generic)
+        }
+    }
+
+    /**
+     * Executes an op quickened for two Longs, [op] storing the result into the slot of the first operand.
+     */
+    private inline fun longOp(quickened: OpCode, op: Fiber.(a: Int, x: Long, y: Long) -> Unit) {
+        val f = fiber
+        val b = f.sp - 1
+        val a = b - 1
+        if (f.isLong(a) && f.isLong(b)) {
+            f.op(a, f.prims[a], f.prims[b])
+            f.sp = b
+        } else {
+            deoptimize(quickened)
+        }
+    }
+
+    /**
+     * Executes an op quickened for two numbers as Doubles, [op] storing the result into the slot of the first operand.
+     * Two Longs deoptimize, as they'd lose precision as Doubles, and the generic op requickens for them.
+     */
+    private inline fun doubleOp(quickened: OpCode, op: Fiber.(a: Int, x: Double, y: Double) -> Unit) {
+        val f = fiber
+        val b = f.sp - 1
+        val a = b - 1
+        if (f.isNumber(a) && f.isNumber(b) && (f.isDouble(a) || f.isDouble(b))) {
+            f.op(a, f.getDouble(a), f.getDouble(b))
+            f.sp = b
+        } else {
+            deoptimize(quickened)
+        }
+    }
+
+    private fun addLongs() = longOp(ADD_LONG) { a, x, y -> prims[a] = x + y }
+    private fun subtractLongs() = longOp(SUBTRACT_LONG) { a, x, y -> prims[a] = x - y }
+    private fun multiplyLongs() = longOp(MULTIPLY_LONG) { a, x, y -> prims[a] = x * y }
+    private fun divideLongs() = longOp(DIVIDE_LONG) { a, x, y -> setIntIfPossible(a, x * 1.0 / y) }
+    private fun divideIntLongs() = longOp(DIVIDE_INT_LONG) { a, x, y -> prims[a] = x / y }
+    private fun modLongs() = longOp(MOD_LONG) { a, x, y -> prims[a] = x % y }
+    private fun ltLongs() = longOp(LT_LONG) { a, x, y -> refs[a] = x < y }
+    private fun leLongs() = longOp(LE_LONG) { a, x, y -> refs[a] = x <= y }
+    private fun geLongs() = longOp(GE_LONG) { a, x, y -> refs[a] = x >= y }
+    private fun gtLongs() = longOp(GT_LONG) { a, x, y -> refs[a] = x > y }
+    private fun eqLongs() = longOp(EQ_LONG) { a, x, y -> refs[a] = x == y }
+
+    private fun addDoubles() = doubleOp(ADD_DOUBLE) { a, x, y -> setIntIfPossible(a, x + y) }
+    private fun subtractDoubles() = doubleOp(SUBTRACT_DOUBLE) { a, x, y -> setIntIfPossible(a, x - y) }
+    private fun multiplyDoubles() = doubleOp(MULTIPLY_DOUBLE) { a, x, y -> setIntIfPossible(a, x * y) }
+    private fun divideDoubles() = doubleOp(DIVIDE_DOUBLE) { a, x, y -> setIntIfPossible(a, x / y) }
+    private fun modDoubles() = doubleOp(MOD_DOUBLE) { a, x, y -> setIntIfPossible(a, x % y) }
+    private fun ltDoubles() = doubleOp(LT_DOUBLE) { a, x, y -> refs[a] = x < y }
+    private fun leDoubles() = doubleOp(LE_DOUBLE) { a, x, y -> refs[a] = x <= y }
+    private fun geDoubles() = doubleOp(GE_DOUBLE) { a, x, y -> refs[a] = x >= y }
+    private fun gtDoubles() = doubleOp(GT_DOUBLE) { a, x, y -> refs[a] = x > y }
+
+    /**
+     * Same as [intIfPossible], but stores the result into a stack slot.
+     */
+    private fun setIntIfPossible(slot: Int, d: Double) {
+        val rounded = round(d)
+        if (rounded == d) {
+            fiber.setLong(slot, rounded.toLong())
+        } else {
+            fiber.setDouble(slot, d)
+        }
+    }
+
     private fun binaryOp(opCode: OpCode, a: Any, b: Any): Any {
         if (a == Nil || b == Nil) {
             return Nil
@@ -421,16 +826,16 @@ class Vm {
         }
     }
 
-    private fun intIfPossible(d: Double): Any {
-        val rounded = round(d)
-        return if (rounded == d) {
-            rounded.toLong()
-        } else {
-            d
+    internal fun checkEquality(code: OpCode) {
+        val f = fiber
+        val top = f.sp - 1
+        if (f.isLong(top) && f.isLong(top - 1)) {
+            val r = f.prims[top - 1] == f.prims[top]
+            f.sp--
+            f.refs[top - 1] = if (code == EQ) r else !r
+            quicken(code, true)
+            return
         }
-    }
-
-    private fun checkEquality(code: OpCode) {
         val b = pop()
         val a = pop()
         val r = areEqual(a, b)
@@ -455,7 +860,9 @@ class Vm {
             is Instance -> {
                 push(a)
                 push(b)
+                val fp = fiber.fp
                 val foundMethod = invoke(Constants.EQUALS, 1, false)
+                runNested(fp)
                 if (foundMethod) {
                     !isFalsey(pop())
                 } else {
@@ -467,11 +874,18 @@ class Vm {
         }
     }
 
-    private fun checkIs() {
+    internal fun has() {
+        swap()
+        invoke(Constants.HAS, 1)
+    }
+
+    internal fun checkIs() {
         val b = pop() as SClass
-        val a = boxIfNotInstance(0)
+        val metaClass = metaClassAt(fiber.sp - 1)
+        val a = metaClass ?: boxIfNotInstance(0)
         fiber.sp-- // Pop a
         val r = when (a) {
+            metaClass -> metaClass.checkIs(b)
             Nil -> false
             is Instance -> a.klass.checkIs(b)
             is SClass -> if (b == declaredClasses[Constants.CLASS_CLASS]!!) true else a.checkIs(b)
@@ -480,15 +894,23 @@ class Vm {
         push(r)
     }
 
+    private fun jump(location: Int) {
+        val frame = fiber.frame
+        if (location < frame.ip) { // jumping back to the start of a loop
+            jit?.countBackEdge(frame.function)
+        }
+        frame.ip = location
+    }
+
     private fun jumpIf(predicate: (Any) -> Boolean) {
         val offset = nextInt
-        if (offset != Compiler.CALL_DEFAULT_JUMP_LOCATION && predicate(peek())) {
-            buffer.position(offset)
+        if (predicate(peek())) {
+            fiber.frame.ip = offset
         }
     }
 
-    private fun closure(asFiber: Boolean) {
-        val function = currentFunction.constants[nextInt] as Function
+    internal fun closure(asFiber: Boolean) {
+        val function = fiber.frame.constants[nextInt] as Function
         val closure = Closure(function)
         if (asFiber) {
             push(FiberTemplate(closure))
@@ -496,35 +918,34 @@ class Vm {
             push(closure)
         }
         for (i in 0 until function.upvalueCount) {
-            val isLocal = nextByte == 1.toByte()
+            val capture = nextInt
             val sp = nextInt
-            val fiberName = nextString
-            closure.upvalues[i] = if (isLocal) {
-                captureUpvalue(fiber.frame.sp + sp, fiberName)
-            } else {
-                fiber.frame.closure.upvalues[sp]
+            closure.upvalues[i] = when (capture) {
+                Compiler.CAPTURE_LOCAL -> captureUpvalue(fiber.frame.sp + sp)
+                Compiler.CAPTURE_VALUE -> Upvalue(fiber[fiber.frame.sp + sp]!!)
+                else -> fiber.frame.closure.upvalues[sp]
             }
         }
     }
 
-    private fun closeUpvalue() {
-        closeUpvalues(fiber.sp - 1, fiber.name)
+    internal fun closeUpvalue() {
+        closeUpvalues(fiber.sp - 1)
         fiber.sp--
     }
 
-    private fun call(callee: Any, argCount: Int) {
+    internal fun call(callee: Any, argCount: Int) {
         val spRelativeToArgCount = fiber.sp - argCount - 1
         when (callee) {
             is Closure -> {
-                fiber.stack[spRelativeToArgCount] = self
+                fiber[spRelativeToArgCount] = self
                 callClosure(callee, argCount)
             }
             is BoundMethod -> {
-                fiber.stack[spRelativeToArgCount] = callee.receiver
+                fiber[spRelativeToArgCount] = callee.receiver
                 callClosure(callee.callable, argCount)
             }
             is BoundNativeMethod -> {
-                fiber.stack[spRelativeToArgCount] = callee.receiver
+                fiber[spRelativeToArgCount] = callee.receiver
                 callNative(callee.callable, argCount)
             }
             is NativeFunc -> callNative(callee, argCount)
@@ -538,7 +959,7 @@ class Vm {
                 if (callee.kind == SClass.Kind.ENUM && callee != self) { // when callee == self, we're inside #initEnum method
                     throw runtimeError("Can't instantiate enums!")
                 }
-                fiber.stack[spRelativeToArgCount] = Instance(callee, callee.kind == SClass.Kind.OPEN)
+                fiber[spRelativeToArgCount] = Instance(callee, callee.kind == SClass.Kind.OPEN)
                 val init = callee.fields[Constants.INIT]
                 when (init) {
                     is Closure -> callClosure(init, argCount)
@@ -549,9 +970,12 @@ class Vm {
                 if (argCount != 0) {
                     throw runtimeError("A fiber can only be instantiated with 0 arguments.")
                 }
-                fiber.stack[spRelativeToArgCount] = Fiber(callee.closure)
+                fiber[spRelativeToArgCount] = Fiber(callee.closure)
             }
             is Fiber -> {
+                if (callee.task != null) {
+                    throw runtimeError("A spawned fiber can only be joined.")
+                }
                 await(false, argCount)
             }
             is Proc -> {
@@ -559,26 +983,38 @@ class Vm {
                     throw runtimeError("A proc can only be called with 0 arguments.")
                 }
                 fiber.sp-- // pop the proc off the stack
-                with(fiber.frame.buffer) {
-                    val current = position() // store current position
-                    position(callee.start) // jump to proc start
-                    run(fiber.fp) { position() != callee.end } // run until code reaches end
-                    position(current) // jump back to the call site
-                }
+                // The proc body runs in a frame that shares the locals of the current one. It's popped when it
+                // reaches the PROC instruction at its end, resuming the current frame at the call site.
+                val stackLimit = fiber.sp + fiber.frame.function.instructions.maxProcStack + STACK_HEADROOM
+                fiber.ensureStackSize(stackLimit)
+                pushFrame(fiber.frame.closure, fiber.frame.sp, stackLimit, callee.end).ip = callee.start
             }
         }
     }
 
     private fun callClosure(closure: Closure, argCount: Int) {
         val f = closure.function
+        val sp = fiber.sp - argCount - 1
+        val stackLimit = sp + f.instructions.maxStack + STACK_HEADROOM
+        fiber.ensureStackSize(stackLimit) // before the optional params are pushed
         handleOptionalParams(f, argCount)
-        if (fiber.fp == MAX_FRAMES) {
+        pushFrame(closure, sp, stackLimit)
+        jit?.countInvocation(f)
+        debugger?.triggerBreakpoint(true)
+    }
+
+    private fun pushFrame(closure: Closure, sp: Int, stackLimit: Int, procEnd: Int = CallFrame.NO_PROC): CallFrame {
+        val fp = fiber.fp
+        if (fp == fiber.callFrames.size && !fiber.growFrames()) {
             throw runtimeError("Stack overflow.")
         }
-        fiber.callFrames[fiber.fp] = CallFrame(closure, fiber.sp - f.arity - 1)
-        fiber.fp++
-        debugger?.triggerBreakpoint(true)
-        runLocal()
+        val frame = fiber.callFrames[fp]?.apply {
+            reset(closure, sp, stackLimit, procEnd)
+        } ?: CallFrame(closure, sp, stackLimit, procEnd).also {
+            fiber.callFrames[fp] = it
+        }
+        fiber.fp = fp + 1
+        return frame
     }
 
     /**
@@ -590,6 +1026,7 @@ class Vm {
             if (argCount < f.arity
                     && f.optionalParamsStart != -1
                     && argCount >= f.optionalParamsStart) {
+                ensureStack(f.arity - argCount) // natives don't get a frame that made room for them
                 for (i in argCount until (f.optionalParamsStart + f.defaultValues!!.size)) {
                     push(f.defaultValues!![i - f.optionalParamsStart])
                     optionalsAddedCount += 1
@@ -606,17 +1043,37 @@ class Vm {
         val totalArgCount = argCount + addedOptionalsCount
         val args = mutableListOf<Any?>()
         for (i in fiber.sp - method.arity - 1 until fiber.sp) {
-            args += fiber.stack[i]
+            args += fiber[i]
         }
         if (method is AsyncNativeFunction) {
-            val latch = CountDownLatch(1)
-            method.func(args) {
-                handleNativeFuncResult(totalArgCount, it)
-                latch.countDown()
+            method.func(context, args, scheduler.suspend(fiber, totalArgCount))
+            if (nestedRunCount > 0) {
+                // Kotlin code up the JVM stack is waiting for this fiber's result, so no other fiber can run
+                resume(scheduler.next(fiber))
+            } else {
+                fiber.trim()
+                resume(scheduler.next())
             }
-            latch.await()
         } else if (method is NativeFunction) {
-            handleNativeFuncResult(totalArgCount, method.func(args))
+            handleNativeFuncResult(totalArgCount, method.func(context, args))
+        }
+    }
+
+    /**
+     * Switches to a fiber the [scheduler] made ready. A fiber whose async native call completed gets the result of
+     * that call pushed onto its stack so that it carries on past the CALL or INVOKE, while a spawned fiber that
+     * hasn't run yet is started.
+     */
+    private fun resume(next: Scheduler.Ready) {
+        fiber = next.fiber
+        when (next) {
+            is Scheduler.Resumption -> handleNativeFuncResult(next.argCount, next.result)
+            is Scheduler.Switch -> {
+                if (fiber.state == Fiber.State.NEW) {
+                    push(fiber)
+                    await(true, 0)
+                }
+            }
         }
     }
 
@@ -625,26 +1082,53 @@ class Vm {
         push(result ?: Nil)
     }
 
-    private fun invoke(name: String, argCount: Int, checkError: Boolean = true): Boolean {
+    internal fun invoke(name: String, argCount: Int, checkError: Boolean = true, cache: InlineCache? = null): Boolean {
+        metaClassAt(fiber.sp - argCount - 1)?.let {
+            // Methods are invoked on raw values directly, the receiver only gets boxed if it's used as an object
+            when (val method = lookUp(it, name, cache)) {
+                is Closure -> {
+                    callClosure(method, argCount)
+                    return true
+                }
+                is NativeFunc -> {
+                    callNative(method, argCount)
+                    return true
+                }
+                else -> { } // Not a method, let the receiver be boxed
+            }
+        }
         val receiver = boxIfNotInstance(argCount)
         if (receiver == Nil) {
             fiber.sp -= argCount // just remove the args, the receiver at slot fiber.sp - args - 1 is already Nil
             return true
         }
-        return (receiver.fields[name])?.let {
-            val callee = when (it) {
-                is Closure -> BoundMethod(receiver, it)
-                is NativeFunc -> BoundNativeMethod(receiver, it)
-                else -> it
+        val field = when (receiver) {
+            is Instance -> getOwnField(receiver, name, cache)
+            is SClass -> lookUp(receiver, name, cache)
+            else -> null
+        }
+        return field?.let {
+            // The receiver is already in place, so methods are called as if they were bound to it
+            when (it) {
+                is Closure -> callClosure(it, argCount)
+                is NativeFunc -> callNative(it, argCount)
+                else -> {
+                    fiber[fiber.sp - argCount - 1] = it
+                    call(it, argCount)
+                }
             }
-            fiber.stack[fiber.sp - argCount - 1] = callee
-            call(callee, argCount)
             true
-        } ?: invokeFromClass(receiver, (receiver as? Instance)?.klass, name, argCount, checkError)
+        } ?: invokeFromClass(receiver, (receiver as? Instance)?.klass, name, argCount, checkError, cache)
     }
 
-    private fun invokeFromClass(receiver: Any?, klass: SClass?, name: String, argCount: Int, checkError: Boolean = true): Boolean {
-        return when (val method = klass?.fields?.get(name)) {
+    private fun invokeFromClass(receiver: Any?,
+                                klass: SClass?,
+                                name: String,
+                                argCount: Int,
+                                checkError: Boolean = true,
+                                cache: InlineCache? = null
+    ): Boolean {
+        return when (val method = klass?.let { lookUp(it, name, cache) }) {
             is Closure -> {
                 callClosure(method, argCount)
                 true
@@ -663,7 +1147,7 @@ class Vm {
         }
     }
 
-    private fun invokeSuper(name: String, argCount: Int) {
+    internal fun invokeSuper(name: String, argCount: Int, cache: InlineCache) {
         val superclass = peek(argCount) as SClass
         if (superclass.name == Constants.CLASS_OBJECT) {
             if (name == Constants.GET && argCount == 1) {
@@ -680,13 +1164,14 @@ class Vm {
             }
         }
         set(argCount, self!!) // bind the super method to self
-        invokeFromClass(superclass, superclass, name, argCount)
+        invokeFromClass(superclass, superclass, name, argCount, cache = cache)
     }
 
     private fun objectLiteral(isMutable: Boolean, propCount: Int) {
         push(Instance(declaredClasses[Constants.CLASS_OBJECT]!!, isMutable).apply {
             if (propCount == -1) {
                 val comprehension = pop() as ObjectComprehension
+                val fields = toDictionary() // comprehensions build maps rather than objects
                 var i = 0
                 while (i < comprehension.values.size) {
                     fields[comprehension.values[i] as String] = comprehension.values[i + 1]
@@ -697,7 +1182,7 @@ class Vm {
                 while (i >= 0) {
                     val value = pop()
                     val key = pop() as String
-                    fields[key] = value
+                    putField(key, value)
                     i--
                 }
             }
@@ -717,7 +1202,7 @@ class Vm {
             }
             items.reverse()
         }
-        push(ListInstance(isMutable, items))
+        push(ListInstance(context, isMutable, items))
     }
 
     internal fun gu(enclosingCompiler: Compiler?) {
@@ -732,7 +1217,7 @@ class Vm {
                     for (i in 0 until f.upvalueCount) {
                         val upvalue = compiler.upvalues[i]
                         closure.upvalues[i] = if (upvalue.isLocal) {
-                            captureUpvalue(fiber.frame.sp + upvalue.sp, upvalue.fiberName)
+                            captureUpvalue(fiber.frame.sp + upvalue.sp)
                         } else {
                             fiber.frame.closure.upvalues[upvalue.sp]
                         }
@@ -747,6 +1232,17 @@ class Vm {
         } ?: throw runtimeError("'gu' can only be used in debug mode.")
     }
 
+    /**
+     * Evaluates the expression in the context of the current frame, as if it were passed to 'gu'.
+     */
+    internal fun evaluate(expr: String, enclosingCompiler: Compiler?): Any {
+        push(expr)
+        val fp = fiber.fp
+        gu(enclosingCompiler)
+        runNested(fp)
+        return pop()
+    }
+
     internal fun ivic(value: Any): Any {
         return when (value) {
             is String, is Long, is Double, is Boolean -> value
@@ -761,72 +1257,49 @@ class Vm {
         } ?: throw runtimeError("'ivic' can only be used in debug mode.")
     }
 
-    private fun captureUpvalue(sp: Int, fiberName: String): Upvalue {
+    /**
+     * @return the open upvalue for the slot [sp] of the current fiber's stack, creating it if there isn't one
+     */
+    private fun captureUpvalue(sp: Int): Upvalue {
         var prevUpvalue: Upvalue? = null
-        var upvalue = openUpvalues[fiberName]
-        while (upvalue != null && upvalue.sp > sp) {
+        var upvalue = fiber.openUpvalues
+        while (upvalue != null && upvalue.slot > sp) {
             prevUpvalue = upvalue
             upvalue = upvalue.next
         }
-        if (upvalue != null && upvalue.sp == sp) {
+        if (upvalue != null && upvalue.slot == sp) {
             return upvalue
         }
-        val createdUpvalue = Upvalue(WeakReference(sp), fiberName, false, upvalue)
+        val createdUpvalue = Upvalue(fiber, sp, upvalue)
         if (prevUpvalue == null) {
-            openUpvalues[fiberName] = createdUpvalue
+            fiber.openUpvalues = createdUpvalue
         } else {
             prevUpvalue.next = createdUpvalue
         }
         return createdUpvalue
     }
 
-    private fun closeUpvalues(last: Int, fiberName: String) {
-        var openUpvalue = openUpvalues[fiberName]
-        while (openUpvalue != null && openUpvalue.sp >= last) {
-            val upvalue = openUpvalue.apply {
-                closed = true
-                location = WeakReference(readUpvalueFromStack(this))
-            }
-            openUpvalue = upvalue.next
-        }
-        if (openUpvalue != null) {
-            openUpvalues[fiberName] = openUpvalue
-        } else {
-            openUpvalues.remove(fiberName)
-        }
-    }
-
-    private fun readUpvalue(upvalue: Upvalue): Any {
-        return if (upvalue.closed) {
-            upvalue.location.get()!!
-        } else {
-            readUpvalueFromStack(upvalue)
-        }
-    }
-
-    private fun readUpvalueFromStack(upvalue: Upvalue): Any {
-        var currentFiber: Fiber? = fiber
-        while (currentFiber != null && currentFiber.name != upvalue.fiberName) {
-            currentFiber = currentFiber.caller
-        }
-        currentFiber?.let {
-            if (upvalue.sp < it.sp) {
-                val value = it.stack[upvalue.sp]
-                if (value != null) {
-                    return value
-                }
-            }
+    /**
+     * Closes the current fiber's upvalues for the slots from [last] up, as their scope is ending.
+     */
+    private fun closeUpvalues(last: Int) {
+        var upvalue = fiber.openUpvalues
+        while (upvalue != null && upvalue.slot >= last) {
+            val next = upvalue.next
+            upvalue.close()
+            upvalue = next
         }
-        throw runtimeError("Unable to read upvalue from stack.")
+        fiber.openUpvalues = upvalue
     }
 
     /**
      * @return true if the program should terminate
      */
-    private fun doReturn(breakAtFp: Int): Boolean {
+    private fun doReturn(breakAtFiber: Fiber, breakAtFp: Int): Boolean {
+        val top = fiber.sp
         val result = pop()
-        val returningFrame = fiber.frame
-        closeUpvalues(returningFrame.sp, fiber.name)
+        var returningFrame = fiber.frame
+        closeUpvalues(returningFrame.sp)
         val numberOfPops = nextInt
         for (i in 0 until numberOfPops) {
             val code = nextCode
@@ -837,23 +1310,41 @@ class Vm {
                 else -> throw IllegalArgumentException("Unexpected code in return scope closing patch: $code!")
             }
         }
+        // A return from within a proc body returns from the function the proc is declared in
+        while (returningFrame.procEnd != CallFrame.NO_PROC) {
+            fiber.fp--
+            returningFrame = fiber.frame
+        }
         fiber.fp--
         return if (fiber.fp == 0) { // Returning from top-level func
             fiber.sp = 0
+            fiber.clear(0, top)
             if (fiber.caller != null) {
                 fiber.state = Fiber.State.NEW
                 yield(result)
+                false
+            } else {
+                scheduler.finish(fiber, result)
+                fiber.trim()
+                if (scheduler.isIdle) {
+                    true
+                } else { // Spawned fibers are still running or waiting
+                    resume(scheduler.next())
+                    false
+                }
             }
-            true
         } else {
             fiber.sp = returningFrame.sp
-            push(result)
-            fiber.fp == breakAtFp
+            fiber.clear(fiber.sp, top) // so that the returning frame's values can be collected
+            if (!returningFrame.discardsResult) {
+                push(result)
+            }
+            fiber === breakAtFiber && fiber.fp == breakAtFp
         }
     }
 
     private fun declareClass(kind: SClass.Kind, name: String) {
-        val klass = SClass(name, kind)
+        val klass = SClass(name, kind, classCount++)
         declaredClasses[name] = klass
         nonFinalizedClasses.push(fiber.sp)
         push(klass)
@@ -873,10 +1364,7 @@ class Vm {
             throw runtimeError("Can't inherit from a module ${superclass.name}")
         }
         val subclass = peek()
-        (subclass as SClass).let {
-            it.fields.putAll(superclass.fields)
-            it.superclasses[superclass.name] = superclass
-        }
+        (subclass as SClass).inherit(superclass)
     }
 
     private fun mixin(isExtension: Boolean) {
@@ -930,42 +1418,60 @@ class Vm {
      * 1. The enum class was just finalized and it's at the top of the stack.
      * 2. Get its #initEnum method.
      * 3. Prepare the call by pushing the class again so that it is "self" in the function's body.
-     * 4. Invoke the function, clean up the Nil, and remove the method from the fields list.
+     * 4. Remove the method from the fields list and invoke it, discarding the Nil it returns.
      */
     private fun initEnum() {
         val klass = peek() as SClass
-        val initEnumMethod = klass.fields[Constants.ENUM_INIT] as Closure
+        val initEnumMethod = klass.fields.remove(Constants.ENUM_INIT) as Closure
         push(klass) // as receiver
         callClosure(initEnumMethod, 0)
-        fiber.sp-- // pop the NIL left by the function return
-        klass.fields.remove(Constants.ENUM_INIT)
+        fiber.frame.discardsResult = true
     }
 
-    private fun resizeStackIfNecessary() {
-        if (fiber.sp == fiber.stackSize) {
-            gc()
-            fiber.stackSize *= STACK_GROWTH_FACTOR
-            fiber.stack = fiber.stack.copyOf(fiber.stackSize)
-        }
+    /**
+     * Makes sure the stack has room for [count] more slots. Frames get room for all the slots they need when they're
+     * pushed, so this is only needed for pushes whose count isn't known beforehand.
+     */
+    private fun ensureStack(count: Int) {
+        fiber.ensureStackSize(fiber.sp + count)
     }
 
     internal fun push(o: Any) {
-        resizeStackIfNecessary()
-        fiber.stack[fiber.sp] = o
+        fiber[fiber.sp] = o
         fiber.sp++
     }
 
+    internal fun pushLong(value: Long) {
+        fiber.setLong(fiber.sp, value)
+        fiber.sp++
+    }
+
+    internal fun pushDouble(value: Double) {
+        fiber.setDouble(fiber.sp, value)
+        fiber.sp++
+    }
+
+    internal fun swap() {
+        val f = fiber
+        val top = f.sp - 1
+        val ref = f.refs[top]
+        val prim = f.prims[top]
+        f.copy(top - 1, top)
+        f.refs[top - 1] = ref
+        f.prims[top - 1] = prim
+    }
+
     internal fun pop(): Any {
         fiber.sp--
-        return fiber.stack[fiber.sp]!!
+        return fiber[fiber.sp]!!
     }
 
-    private fun peek(offset: Int = 0): Any {
-        return fiber.stack[fiber.sp - offset - 1]!!
+    internal fun peek(offset: Int = 0): Any {
+        return fiber[fiber.sp - offset - 1]!!
     }
 
     private fun set(offset: Int, value: Any) {
-        fiber.stack[fiber.sp - offset - 1] = value
+        fiber[fiber.sp - offset - 1] = value
     }
 
     private fun getFieldsOrThrow(it: Any?): MutableMap<String, Any> {
@@ -980,18 +1486,18 @@ class Vm {
         return when (it) {
             is Instance -> it.klass
             is SClass -> it
-            else -> throw runtimeError("Unable to get SClass for $it!", it)
+            else -> metaClassOf(it) ?: throw runtimeError("Unable to get SClass for $it!", it)
         }
     }
 
-    private fun bindMethod(receiver: Any, klass: SClass, prop: Any?, name: String) {
-        getBoundMethod(receiver, klass, prop, name)?.let {
+    private fun bindMethod(receiver: Any, klass: SClass, prop: Any?, name: String, cache: InlineCache? = null) {
+        getBoundMethod(receiver, klass, prop, name, cache)?.let {
             fiber.sp--
             push(it)
         }
     }
 
-    private fun getBoundMethod(receiver: Any, klass: SClass?, prop: Any?, name: String): BoundCallable<*>? {
+    private fun getBoundMethod(receiver: Any, klass: SClass?, prop: Any?, name: String, cache: InlineCache? = null): BoundCallable<*>? {
         return when (prop) {
             is NativeFunc -> BoundNativeMethod(receiver, prop)
 //            is FiberTemplate -> BoundFiberTemplate(receiver, prop)
@@ -1000,7 +1506,7 @@ class Vm {
                 val method = if (prop is Closure) {
                     prop
                 } else {
-                    (klass?.fields?.get(name) as? Closure)?.let { it } ?: return null
+                    (klass?.let { lookUp(it, name, cache) } as? Closure)?.let { it } ?: return null
                 }
                 BoundMethod(receiver, method)
             }
@@ -1012,41 +1518,21 @@ class Vm {
      */
     private fun boxIfNotInstance(offset: Int): Fielded {
         val loc = fiber.sp - offset - 1
-        val value = fiber.stack[loc]
+        val value = fiber[loc]
         if (value == Nil) {
             return Nil
         } else if (value is Instance || value is SClass) {
             return value as Fielded
-        } else if (value is Long || value is Double) {
-            val boxedNum = Instance(declaredClasses[Constants.CLASS_NUM]!!, false).apply {
-                fields[Constants.PRIVATE] = value
-            }
-            fiber.stack[loc] = boxedNum
-            return boxedNum
-        } else if (value is String) {
-            val boxedStr = Instance(declaredClasses[Constants.CLASS_STRING]!!, false).apply {
-                fields[Constants.PRIVATE] = value
-                fields["len"] = value.length.toLong()
-            }
-            fiber.stack[loc] = boxedStr
-            return boxedStr
-        } else if (value is Closure) {
-            val boxedClosure = Instance(declaredClasses[Constants.CLASS_FUNCTION]!!, false).apply {
-                fields[Constants.PRIVATE] = value
-                fields[Constants.NAME] = value.function.name
-                fields[Constants.ARITY] = value.function.arity
-            }
-            fiber.stack[loc] = boxedClosure
-            return boxedClosure
-        } else {
-            throw runtimeError("Unable to box $value!", value)
         }
+        val boxed = context.box(value!!) ?: throw runtimeError("Unable to box $value!", value)
+        fiber[loc] = boxed
+        return boxed
     }
 
     private fun unbox(o: Any): Any {
         return if (o is Instance) {
             when (o.klass) {
-                declaredClasses[Constants.CLASS_NUM], declaredClasses[Constants.CLASS_STRING] -> o.fields[Constants.PRIVATE]!!
+                declaredClasses[Constants.CLASS_NUM], declaredClasses[Constants.CLASS_STRING] -> o[Constants.PRIVATE]!!
                 else -> o
             }
         } else {
@@ -1060,12 +1546,14 @@ class Vm {
                 when (o.klass) {
                     declaredClasses[Constants.CLASS_OBJECT] -> o.stringify(this)
                     declaredClasses[Constants.CLASS_LIST] -> o.stringify(this)
-                    declaredClasses[Constants.CLASS_STRING] -> o.fields[Constants.PRIVATE] as String
+                    declaredClasses[Constants.CLASS_STRING] -> o[Constants.PRIVATE] as String
                     else -> {
-                        when (val toStringField = o.fields[Constants.TO_STRING] ?: o.klass.fields[Constants.TO_STRING]) {
+                        when (val toStringField = o[Constants.TO_STRING] ?: o.klass.fields[Constants.TO_STRING]) {
                             is Closure, is NativeFunc -> {
                                 push(o) // need to push as bound method will replace this index with itself
+                                val fp = fiber.fp
                                 call(getBoundMethod(o, o.klass, toStringField, Constants.TO_STRING)!!, 0)
+                                runNested(fp)
                                 pop() as String
                             }
                             else -> o.stringify(this)
@@ -1085,15 +1573,8 @@ class Vm {
         }
     }
 
-    private fun gc() {
-        for (i in fiber.sp until fiber.stackSize) {
-            fiber.stack[i] = null
-        }
-        System.gc()
-    }
-
     private fun printStack() {
-        println(fiber.stack.copyOfRange(0, fiber.sp).joinToString(" "))
+        println((0 until fiber.sp).joinToString(" ") { fiber[it].toString() })
     }
 
     private fun runtimeError(message: String, vararg operands: Any?): Exception {
@@ -1114,38 +1595,40 @@ class Vm {
         }
     }
 
-    internal val buffer: ByteBuffer get() = fiber.frame.buffer
+    internal val currentPosition: Int get() = fiber.frame.bytePosition
     internal val currentFunction: Function get() = fiber.frame.closure.function
-    private val currentNonFinalizedClass: SClass get() = fiber.stack[nonFinalizedClasses.peek()] as SClass
-    private val self: Any? get() = fiber.stack[fiber.frame.sp] // self is always at 0
-
-    private val nextCode: OpCode get() = OpCode.from(nextByte)
-    private val nextByte: Byte get() = buffer.get()
-    private val nextInt: Int get() = buffer.int
-    private val nextLong: Long get() = buffer.long
-    private val nextDouble: Double get() = buffer.double
-    private val nextString: String get() = currentFunction.constants[nextInt] as String
+    private val currentNonFinalizedClass: SClass get() = fiber[nonFinalizedClasses.peek()] as SClass
+    private val self: Any? get() = fiber[fiber.frame.sp] // self is always at 0
 
-    private class Yield : RuntimeException("Yield")
+    private val nextCode: OpCode get() = OpCode.from(nextInt)
+    private val nextInt: Int get() = with(fiber.frame) { code[ip++] }
+    private val nextString: String get() = fiber.frame.constants[nextInt] as String
+    // Must be read right after the opcode, as it's keyed by the location of the instruction
+    internal val inlineCache: InlineCache get() = with(fiber.frame) {
+        caches[ip - 1] ?: InlineCache().also { caches[ip - 1] = it }
+    }
 
     private class ObjectComprehension {
         val values = mutableListOf<Any>()
     }
 
     companion object {
-        internal const val INITIAL_STACK_SIZE = 256
-        private const val STACK_GROWTH_FACTOR = 4
+        internal const val INITIAL_STACK_SIZE = 16
+        internal const val STACK_GROWTH_FACTOR = 2
+        // Extra slots every frame gets, for the values the Vm itself briefly pushes, e.g, to call toString
+        private const val STACK_HEADROOM = 4
         internal const val MAX_FRAMES = 1024
 
-        internal var instance: Vm? = null
-        val declaredClasses = mutableMapOf<String, SClass>()
-
-        fun newInstance(className: String, init: Instance.() -> Unit): Instance {
-            val instance = Instance(declaredClasses[className]!!, false)
-            instance.init()
-            return instance
+        /**
+         * Num results are Longs whenever they're whole, so that 4 / 2 is 2, not 2.0.
+         */
+        internal fun intIfPossible(d: Double): Any {
+            val rounded = round(d)
+            return if (rounded == d) {
+                rounded.toLong()
+            } else {
+                d
+            }
         }
-
-        fun newObject(init: Instance.() -> Unit) = newInstance(Constants.CLASS_OBJECT, init)
     }
 }
\ No newline at end of file
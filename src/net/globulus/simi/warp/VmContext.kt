@@ -0,0 +1,74 @@
+package net.globulus.simi.warp
+
+import net.globulus.simi.Constants
+
+/**
+ * The state of a single [Vm] that values and native code need access to, such as the classes the program declared.
+ * Every Vm has its own context, so multiple Vms can run side by side in the same JVM.
+ *
+ * Native functions are invoked with the context of the Vm that called them as their receiver.
+ */
+class VmContext internal constructor(internal val vm: Vm) {
+    val declaredClasses = mutableMapOf<String, SClass>()
+
+    fun newInstance(className: String, init: Instance.() -> Unit): Instance {
+        val instance = Instance(declaredClasses[className]!!, false)
+        instance.init()
+        return instance
+    }
+
+    fun newObject(init: Instance.() -> Unit) = newInstance(Constants.CLASS_OBJECT, init)
+
+    fun newList(mutable: Boolean, items: MutableList<Any>?) = ListInstance(this, mutable, items)
+
+    fun mutabilityLockException() = Instance(declaredClasses[Constants.EXCEPTION_MUTABILITY_LOCK]!!, false)
+
+    fun illegalArgumentException(message: String) = newInstance(Constants.EXCEPTION_ILLEGAL_ARGUMENT) {
+        fields[Constants.MESSAGE] = message
+    }
+
+    fun Map<String, Any>.toSimiObject(): Instance {
+        val instance = newObject { }
+        for ((k, v) in entries) {
+            instance.fields[k] = when (v) {
+                is Array<*> -> v.toSimiList()
+                else -> v
+            }
+        }
+        return instance
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun Array<*>.toSimiList() = newList(false, (this as? Array<Any>)?.toMutableList())
+
+    fun List<Any>.toSimiList() = newList(false, toMutableList())
+
+    /**
+     * Returns the value of a prop as the Vm would get it, i.e, including the ones inherited from the class.
+     */
+    fun getProp(obj: Any, name: String): Any? {
+        vm.getPropRaw(obj, name)
+        return vm.pop()
+    }
+
+    /**
+     * Wraps a raw Num, String or Function value into an instance of its class, for when it's used as an object.
+     */
+    internal fun box(value: Any): Instance? {
+        return when (value) {
+            is Long, is Double -> newInstance(Constants.CLASS_NUM) {
+                this[Constants.PRIVATE] = value
+            }
+            is String -> newInstance(Constants.CLASS_STRING) {
+                this[Constants.PRIVATE] = value
+                this["len"] = value.length.toLong()
+            }
+            is Closure -> newInstance(Constants.CLASS_FUNCTION) {
+                this[Constants.PRIVATE] = value
+                this[Constants.NAME] = value.function.name
+                this[Constants.ARITY] = value.function.arity.toLong()
+            }
+            else -> null
+        }
+    }
+}
@@ -103,7 +103,7 @@ class Debugger(private val vm: Vm) {
         val locals = di.locals.sortedByDescending { it.second.start.line }
         if (locals.isEmpty()) { // Print the stack instead
             for (i in frame.sp until vm.fiber.sp) {
-                sb.appendln("[$i] ${vm.stringify(vm.fiber.stack[i]!!)}")
+                sb.appendln("[$i] ${vm.stringify(vm.fiber[i]!!)}")
             }
         } else {
             var count = 0
@@ -116,7 +116,7 @@ class Debugger(private val vm: Vm) {
                     continue // this one's already dead
                 }
                 val local = pair.first
-                vm.fiber.stack[frame.sp + local.sp]?.let {
+                vm.fiber[frame.sp + local.sp]?.let {
                     sb.appendln("${local.name} = ${vm.stringify(it)}")
                     count++
                 } ?: break // if we reached into the null territory of the stack (shouldn't happen, but still), break
@@ -133,7 +133,7 @@ class Debugger(private val vm: Vm) {
         val sb = StringBuilder()
         var count = 0
         for (i in vm.fiber.sp - 1 downTo frame.sp) {
-            sb.appendln("[$i] ${vm.stringify(vm.fiber.stack[i]!!).limitValue()}")
+            sb.appendln("[$i] ${vm.stringify(vm.fiber[i]!!).limitValue()}")
             count++
             if (capped && count == MAX_STACK_ITEMS) {
                 sb.appendln("...${vm.fiber.sp - frame.sp - MAX_STACK_ITEMS} more stack items available, use 's' to print them all.")
@@ -159,16 +159,14 @@ class Debugger(private val vm: Vm) {
             'e' -> { // evaluate
                 val expr = line.substring(2)
                 debuggingOff = true
-                vm.push(expr)
-                vm.gu(frame.closure.function.debugInfo!!.compiler)
-                val res = vm.stringify(vm.pop())
+                val res = vm.stringify(vm.evaluate(expr, frame.closure.function.debugInfo!!.compiler))
                 debuggingOff = false
                 println(res)
                 readInput(frame, codePointer)
             }
             'p' -> { // print the ivic dump of the stack value
                 val loc = line.substring(2).toInt()
-                println(vm.ivic(vm.fiber.stack[loc]!!))
+                println(vm.ivic(vm.fiber[loc]!!))
                 readInput(frame, codePointer)
             }
             'i' -> { // step into
@@ -216,10 +214,10 @@ class Debugger(private val vm: Vm) {
 
     private val currentCodePoint: CodePointer get() = vm.fiber.frame.getCurrentCodePoint()
 
-    private val currentPosition: Int get() = vm.buffer.position()
+    private val currentPosition: Int get() = vm.currentPosition
 
     private fun isBreakpointIgnored(): Boolean {
-        return ignoredBreakpoints[vm.currentFunction]?.contains(vm.buffer.position()) == true
+        return ignoredBreakpoints[vm.currentFunction]?.contains(currentPosition) == true
     }
 
     private fun String.replaceNewlines() = replace("\n", "<br />")
@@ -0,0 +1,240 @@
+package net.globulus.simi.warp.jit
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+
+/**
+ * Emits a minimal JVM class file: a constant pool, and methods with code but no exception tables or attributes
+ * other than Code. Classes are emitted with version 49 (Java 5), whose verifier infers types by itself, so no
+ * StackMapTable frames need to be computed.
+ */
+internal class ClassWriter(private val name: String, private val superName: String) {
+    private val poolBytes = ByteArrayOutputStream()
+    private val pool = DataOutputStream(poolBytes)
+    private val poolIndexes = mutableMapOf<String, Int>()
+    private var poolSize = 1 // index 0 isn't used
+
+    private val methodBytes = ByteArrayOutputStream()
+    private val methods = DataOutputStream(methodBytes)
+    private var methodCount = 0
+
+    fun utf8(value: String) = entry("U$value") {
+        pool.writeByte(1)
+        pool.writeUTF(value)
+    }
+
+    fun classRef(internalName: String): Int {
+        val nameIndex = utf8(internalName)
+        return entry("C$internalName") {
+            pool.writeByte(7)
+            pool.writeShort(nameIndex)
+        }
+    }
+
+    fun methodRef(owner: String, name: String, descriptor: String) = memberRef(10, owner, name, descriptor)
+
+    fun fieldRef(owner: String, name: String, descriptor: String) = memberRef(9, owner, name, descriptor)
+
+    fun int(value: Int) = entry("I$value") {
+        pool.writeByte(3)
+        pool.writeInt(value)
+    }
+
+    fun long(value: Long) = entry("J$value", 2) {
+        pool.writeByte(5)
+        pool.writeLong(value)
+    }
+
+    fun double(value: Double) = entry("D${value.toRawBits()}", 2) {
+        pool.writeByte(6)
+        pool.writeDouble(value)
+    }
+
+    fun method(access: Int, name: String, descriptor: String, maxStack: Int, maxLocals: Int, code: ByteArray) {
+        val nameIndex = utf8(name)
+        val descriptorIndex = utf8(descriptor)
+        val codeIndex = utf8("Code")
+        methods.apply {
+            writeShort(access)
+            writeShort(nameIndex)
+            writeShort(descriptorIndex)
+            writeShort(1) // attributes
+            writeShort(codeIndex)
+            writeInt(12 + code.size)
+            writeShort(maxStack)
+            writeShort(maxLocals)
+            writeInt(code.size)
+            write(code)
+            writeShort(0) // exception table
+            writeShort(0) // attributes
+        }
+        methodCount++
+    }
+
+    fun toByteArray(): ByteArray {
+        val thisIndex = classRef(name)
+        val superIndex = classRef(superName)
+        if (poolSize > 0xFFFF) {
+            throw IllegalStateException("Constant pool of $name is too large.")
+        }
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).apply {
+            writeInt(0xCAFEBABE.toInt())
+            writeShort(0) // minor version
+            writeShort(VERSION)
+            writeShort(poolSize)
+            write(poolBytes.toByteArray())
+            writeShort(ACC_PUBLIC or ACC_FINAL or ACC_SUPER)
+            writeShort(thisIndex)
+            writeShort(superIndex)
+            writeShort(0) // interfaces
+            writeShort(0) // fields
+            writeShort(methodCount)
+            write(methodBytes.toByteArray())
+            writeShort(0) // attributes
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun memberRef(tag: Int, owner: String, name: String, descriptor: String): Int {
+        val ownerIndex = classRef(owner)
+        val nameIndex = utf8(name)
+        val descriptorIndex = utf8(descriptor)
+        val nameAndTypeIndex = entry("N$name:$descriptor") {
+            pool.writeByte(12)
+            pool.writeShort(nameIndex)
+            pool.writeShort(descriptorIndex)
+        }
+        return entry("M$tag$owner.$name:$descriptor") {
+            pool.writeByte(tag)
+            pool.writeShort(ownerIndex)
+            pool.writeShort(nameAndTypeIndex)
+        }
+    }
+
+    private inline fun entry(key: String, slots: Int = 1, write: () -> Unit): Int {
+        poolIndexes[key]?.let {
+            return it
+        }
+        write()
+        return poolSize.also {
+            poolIndexes[key] = it
+            poolSize += slots // Long and Double constants take up two slots
+        }
+    }
+
+    companion object {
+        const val ACC_PUBLIC = 0x0001
+        const val ACC_FINAL = 0x0010
+        const val ACC_SUPER = 0x0020
+
+        private const val VERSION = 49
+    }
+}
+
+/**
+ * The code of a single method, with forward and backward jumps to [Label]s. All jumps are emitted with 32-bit
+ * offsets, so the size of the method is only limited by the class file format.
+ */
+internal class CodeWriter {
+    private val bytes = ByteArrayOutputStream()
+    private val fixups = mutableListOf<Fixup>()
+
+    val size get() = bytes.size()
+
+    fun op(code: Int) {
+        bytes.write(code)
+    }
+
+    fun op(code: Int, index: Int) {
+        bytes.write(code)
+        short(index)
+    }
+
+    fun short(value: Int) {
+        bytes.write(value shr 8)
+        bytes.write(value)
+    }
+
+    fun int(value: Int) {
+        short(value shr 16)
+        short(value)
+    }
+
+    fun place(label: Label) {
+        label.position = size
+    }
+
+    fun goTo(label: Label) {
+        jump(GOTO_W, size, label)
+    }
+
+    /**
+     * Jumps to [label] unless the [condition] jump op's condition holds.
+     */
+    fun jumpUnless(condition: Int, label: Label) {
+        op(condition, 3 + 5) // skip over the goto_w below
+        goTo(label)
+    }
+
+    fun tableSwitch(default: Label, low: Int, targets: List<Label>) {
+        val start = size
+        op(TABLESWITCH)
+        while (size % 4 != 0) {
+            op(0) // padding
+        }
+        jump(null, start, default)
+        int(low)
+        int(low + targets.size - 1)
+        for (target in targets) {
+            jump(null, start, target)
+        }
+    }
+
+    fun toByteArray(): ByteArray {
+        val code = bytes.toByteArray()
+        for (fixup in fixups) {
+            val offset = fixup.label.position - fixup.from
+            for (i in 0 until 4) {
+                code[fixup.at + i] = (offset shr (24 - 8 * i)).toByte()
+            }
+        }
+        return code
+    }
+
+    private fun jump(code: Int?, from: Int, label: Label) {
+        code?.let { op(it) }
+        fixups += Fixup(size, from, label)
+        int(0)
+    }
+
+    class Label {
+        var position = -1
+    }
+
+    private class Fixup(val at: Int, val from: Int, val label: Label)
+
+}
+
+// Opcodes of the JVM instructions the Jit emits
+internal const val ICONST_0 = 0x03
+internal const val ICONST_1 = 0x04
+internal const val BIPUSH = 0x10
+internal const val SIPUSH = 0x11
+internal const val LDC_W = 0x13
+internal const val LDC2_W = 0x14
+internal const val ILOAD_3 = 0x1D
+internal const val ALOAD_0 = 0x2A
+internal const val ALOAD_1 = 0x2B
+internal const val ALOAD_2 = 0x2C
+internal const val ISTORE_3 = 0x3E
+internal const val IFNE = 0x9A
+internal const val IF_ICMPEQ = 0x9F
+internal const val IF_ICMPLT = 0xA1
+internal const val TABLESWITCH = 0xAA
+internal const val IRETURN = 0xAC
+internal const val RETURN = 0xB1
+internal const val GETSTATIC = 0xB2
+internal const val INVOKEVIRTUAL = 0xB6
+internal const val INVOKESPECIAL = 0xB7
+internal const val GOTO_W = 0xC8
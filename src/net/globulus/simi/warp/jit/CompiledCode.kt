@@ -0,0 +1,141 @@
+package net.globulus.simi.warp.jit
+
+import net.globulus.simi.warp.*
+
+/**
+ * The superclass of the classes the [Jit] generates. The instructions of the function a class was compiled from are
+ * split into chunks, each a method of its own, as HotSpot doesn't compile methods larger than 8000 bytes. A chunk
+ * starts by switching on the frame's ip to the instruction it's at, and then makes one call to a helper below for
+ * each instruction, with the operands passed as constants, while jumps within the chunk become JVM jumps. Jumps out of
+ * the chunk return to [execute], which the class overrides to call the chunk that the frame's ip falls into, until one
+ * of them hands control back to the Vm. That leaves HotSpot with plain JVM code it can inline and optimize across
+ * instructions.
+ *
+ * Helpers that use inline caches or quicken ops take the location of the instruction's operands, as those are keyed
+ * by the frame's ip, which compiled code otherwise doesn't keep up to date.
+ */
+abstract class CompiledCode {
+    /**
+     * Executes the function's instructions, starting at the frame's ip, for as long as [frame] is the one being run.
+     * The frame's ip is left at the instruction that should be executed next.
+     * @return true if the Vm should execute the next instruction itself, false if a call or a fiber switch moved on
+     * to another frame
+     */
+    abstract fun execute(vm: Vm, frame: CallFrame): Boolean
+
+    protected fun left(vm: Vm, frame: CallFrame) = vm.fiber.frame !== frame
+
+    protected fun pushTrue(vm: Vm) = vm.push(true)
+
+    protected fun pushFalse(vm: Vm) = vm.push(false)
+
+    protected fun pushNil(vm: Vm) = vm.push(Nil)
+
+    protected fun pushLong(vm: Vm, value: Long) = vm.pushLong(value)
+
+    protected fun pushDouble(vm: Vm, value: Double) = vm.pushDouble(value)
+
+    protected fun pushConst(vm: Vm, frame: CallFrame, index: Int) = vm.push(frame.constants[index])
+
+    protected fun pop(vm: Vm) {
+        vm.fiber.sp--
+    }
+
+    protected fun popUnder(vm: Vm, count: Int) = vm.popUnder(count)
+
+    protected fun duplicate(vm: Vm) = vm.duplicate()
+
+    protected fun swap(vm: Vm) = vm.swap()
+
+    protected fun setLocal(vm: Vm, sp: Int) = vm.setVar(sp)
+
+    protected fun getLocal(vm: Vm, sp: Int) = vm.getVar(sp)
+
+    protected fun setUpvalue(vm: Vm, index: Int) = vm.setUpvalue(index)
+
+    protected fun getUpvalue(vm: Vm, index: Int) = vm.getUpvalue(index)
+
+    protected fun setProp(vm: Vm, frame: CallFrame, ip: Int) {
+        frame.ip = ip
+        vm.setProp(vm.inlineCache)
+    }
+
+    protected fun getProp(vm: Vm, frame: CallFrame, ip: Int) {
+        frame.ip = ip
+        vm.getProp(vm.inlineCache)
+    }
+
+    protected fun updateProp(vm: Vm) = vm.updateProp()
+
+    protected fun invert(vm: Vm) = vm.invert()
+
+    protected fun negate(vm: Vm) = vm.negate()
+
+    protected fun add(vm: Vm, frame: CallFrame, ip: Int) {
+        frame.ip = ip
+        vm.add()
+    }
+
+    protected fun binaryOp(vm: Vm, frame: CallFrame, ip: Int, opCode: OpCode) {
+        frame.ip = ip
+        vm.binaryOpOnStack(opCode)
+    }
+
+    protected fun checkEquality(vm: Vm, frame: CallFrame, ip: Int, opCode: OpCode) {
+        frame.ip = ip
+        vm.checkEquality(opCode)
+    }
+
+    protected fun checkIs(vm: Vm) = vm.checkIs()
+
+    protected fun has(vm: Vm) = vm.has()
+
+    protected fun print(vm: Vm) = println(vm.stringify(vm.pop()))
+
+    protected fun isFalsey(vm: Vm) = vm.isFalsey(vm.peek())
+
+    protected fun isNil(vm: Vm) = vm.peek() == Nil
+
+    protected fun isException(vm: Vm) = vm.isException(vm.peek())
+
+    protected fun call(vm: Vm, argCount: Int) = vm.call(vm.peek(argCount), argCount)
+
+    protected fun invoke(vm: Vm, frame: CallFrame, ip: Int, name: Int, argCount: Int) {
+        frame.ip = ip
+        vm.invoke(frame.constants[name] as String, argCount, cache = vm.inlineCache)
+    }
+
+    protected fun invokeSuper(vm: Vm, frame: CallFrame, ip: Int, name: Int, argCount: Int) {
+        frame.ip = ip
+        vm.invokeSuper(frame.constants[name] as String, argCount, vm.inlineCache)
+    }
+
+    protected fun closure(vm: Vm, frame: CallFrame, ip: Int, asFiber: Boolean) {
+        frame.ip = ip
+        vm.closure(asFiber)
+    }
+
+    protected fun closeUpvalue(vm: Vm) = vm.closeUpvalue()
+
+    protected fun selfFn(vm: Vm, frame: CallFrame) = vm.push(frame.function)
+
+    protected fun addLocals(vm: Vm, a: Int, b: Int) = vm.addLocals(a, b)
+
+    protected fun ltLocalInt(vm: Vm, sp: Int, constant: Long) = vm.ltLocalInt(sp, constant)
+
+    protected fun getPropId(vm: Vm, frame: CallFrame, ip: Int, name: Int) {
+        frame.ip = ip
+        vm.getProp(vm.inlineCache, frame.constants[name])
+    }
+
+    protected fun invokeLocal(vm: Vm, frame: CallFrame, ip: Int, sp: Int, name: Int, argCount: Int) {
+        frame.ip = ip
+        val cache = vm.inlineCache
+        vm.getVar(sp)
+        vm.invoke(frame.constants[name] as String, argCount, cache = cache)
+    }
+
+    protected fun popTwo(vm: Vm) {
+        vm.fiber.sp -= 2
+    }
+}
@@ -0,0 +1,370 @@
+package net.globulus.simi.warp.jit
+
+import net.globulus.simi.warp.*
+import net.globulus.simi.warp.Function
+import net.globulus.simi.warp.OpCode.*
+
+/**
+ * The baseline compiler. It counts calls to functions and jumps back to the start of loops in them, and once a
+ * function gets hot, translates its [Instructions] into a JVM class that extends [CompiledCode], which the Vm then
+ * runs instead of interpreting the function.
+ *
+ * Instructions that affect frames or fibers in ways compiled code can't follow (returns, yields, procs, gu) and
+ * those that only run once anyway (class declarations, annotations, literals) aren't compiled. The generated code
+ * returns to the Vm on reaching them, and is re-entered at the instruction that comes after.
+ *
+ * Functions whose class the JVM won't load keep being interpreted, and are printed along with the reason if
+ * [reportsFailures] is set.
+ */
+internal class Jit(private val reportsFailures: Boolean) {
+    private var classCount = 0
+
+    fun countInvocation(function: Function) {
+        if (++function.invocationCount == INVOCATION_THRESHOLD) {
+            compile(function)
+        }
+    }
+
+    fun countBackEdge(function: Function) {
+        if (++function.backEdgeCount == BACK_EDGE_THRESHOLD) {
+            compile(function)
+        }
+    }
+
+    private fun compile(function: Function) {
+        if (function.compiled != null) {
+            return
+        }
+        val name = "$PACKAGE/Compiled\$${classCount++}\$${function.name.replace(Regex("\\W"), "_")}"
+        function.compiled = try {
+            val bytes = Translation(name, function.instructions).toByteArray()
+            Loader(CompiledCode::class.java.classLoader)
+                    .define(name.replace('/', '.'), bytes)
+                    .getDeclaredConstructor()
+                    .newInstance() as CompiledCode
+        } catch (e: LinkageError) { // The class is malformed or doesn't verify
+            report(function, e)
+        } catch (e: IllegalStateException) { // The class outgrows the JVM's limits
+            report(function, e)
+        }
+    }
+
+    private fun report(function: Function, e: Throwable): CompiledCode? {
+        if (reportsFailures) {
+            System.err.println("Couldn't compile ${function.name}: $e")
+        }
+        return null
+    }
+
+    /**
+     * Translates the instructions of a function into a class. HotSpot doesn't compile methods larger than 8000
+     * bytes, which functions such as the top-level script easily grow to, so the instructions are split into
+     * chunks, each compiled into its own method. [CompiledCode.execute] calls the chunk that the frame's ip falls
+     * into, and again when the chunk jumps to an instruction in another one.
+     */
+    private class Translation(private val name: String, private val instructions: Instructions) {
+        private val writer = ClassWriter(name, BASE)
+        private val code = instructions.code
+        private val labels = Array(code.size) { CodeWriter.Label() }
+        private val starts = BooleanArray(code.size)
+
+        // The chunk being emitted
+        private var out = CodeWriter()
+        private var chunkStart = 0
+        private var chunkEnd = 0
+        private var chunkEndLabel = CodeWriter.Label()
+
+        fun toByteArray(): ByteArray {
+            var ip = 0
+            while (ip < code.size) {
+                starts[ip] = true
+                ip += instructions.length(ip)
+            }
+            val chunkEnds = split()
+            chunkStart = 0
+            for (end in chunkEnds) {
+                chunkEnd = end
+                emitChunk()
+                chunkStart = end
+            }
+            emitExecute(chunkEnds)
+            writer.method(ClassWriter.ACC_PUBLIC, "<init>", "()V", 1, 1, CodeWriter().run {
+                op(ALOAD_0)
+                op(INVOKESPECIAL, writer.methodRef(BASE, "<init>", "()V"))
+                op(RETURN)
+                toByteArray()
+            })
+            return writer.toByteArray()
+        }
+
+        /**
+         * @return the end locations of chunks, sized by emitting each instruction as if every jump left the chunk,
+         * which is the longest code it can get.
+         */
+        private fun split(): List<Int> {
+            val ends = mutableListOf<Int>()
+            var size = 0
+            var ip = 0
+            chunkEnd = -1 // makes all jumps non-local
+            while (ip < code.size) {
+                out = CodeWriter()
+                emitInstruction(ip)
+                val length = instructions.length(ip)
+                val instructionSize = out.size + 4 * length // its entries in the chunk's tableswitch included
+                if (size > 0 && size + instructionSize > MAX_CHUNK_SIZE) {
+                    ends += ip
+                    size = 0
+                }
+                size += instructionSize
+                ip += length
+            }
+            ends += code.size
+            return ends
+        }
+
+        /**
+         * Emits a method that starts by jumping to the instruction at the frame's ip, via a tableswitch that's placed
+         * at its end, once the size of the chunk is known.
+         */
+        private fun emitChunk() {
+            out = CodeWriter()
+            chunkEndLabel = CodeWriter.Label()
+            val dispatch = CodeWriter.Label()
+            val interpret = CodeWriter.Label()
+            out.goTo(dispatch)
+            var ip = chunkStart
+            while (ip < chunkEnd) {
+                out.place(labels[ip])
+                emitInstruction(ip)
+                ip += instructions.length(ip)
+            }
+            out.place(chunkEndLabel)
+            exit(chunkEnd, CONTINUE)
+            out.place(dispatch)
+            out.op(ALOAD_2)
+            out.op(INVOKEVIRTUAL, writer.methodRef(FRAME, "getIp", "()I"))
+            out.tableSwitch(interpret, chunkStart, (chunkStart until chunkEnd).map {
+                if (starts[it]) labels[it] else interpret
+            })
+            out.place(interpret)
+            out.op(ICONST_0 + INTERPRET)
+            out.op(IRETURN)
+            writer.method(ClassWriter.ACC_PUBLIC, chunkName(chunkStart), CHUNK_DESC, MAX_STACK, 3, out.toByteArray())
+        }
+
+        /**
+         * Emits [CompiledCode.execute], which calls chunks for as long as they return [CONTINUE].
+         */
+        private fun emitExecute(chunkEnds: List<Int>) {
+            out = CodeWriter()
+            val loop = CodeWriter.Label()
+            val result = CodeWriter.Label()
+            out.place(loop)
+            out.op(ALOAD_2)
+            out.op(INVOKEVIRTUAL, writer.methodRef(FRAME, "getIp", "()I"))
+            out.op(ISTORE_3)
+            var start = 0
+            for (end in chunkEnds) {
+                val next = CodeWriter.Label()
+                out.op(ILOAD_3)
+                push(end)
+                out.jumpUnless(IF_ICMPLT, next)
+                out.op(ALOAD_0)
+                out.op(ALOAD_1)
+                out.op(ALOAD_2)
+                out.op(INVOKEVIRTUAL, writer.methodRef(name, chunkName(start), CHUNK_DESC))
+                out.goTo(result)
+                out.place(next)
+                start = end
+            }
+            out.op(ICONST_1) // past the end of the code
+            out.op(IRETURN)
+            out.place(result)
+            out.op(ISTORE_3)
+            out.op(ILOAD_3)
+            out.jumpUnless(IFNE, loop) // CONTINUE
+            out.op(ILOAD_3)
+            out.op(ICONST_0 + INTERPRET)
+            val left = CodeWriter.Label()
+            out.jumpUnless(IF_ICMPEQ, left)
+            out.op(ICONST_1)
+            out.op(IRETURN)
+            out.place(left)
+            out.op(ICONST_0)
+            out.op(IRETURN)
+            writer.method(ClassWriter.ACC_PUBLIC, "execute", "($VM$FRAME_DESC)Z", MAX_STACK, 4, out.toByteArray())
+        }
+
+        private fun emitInstruction(ip: Int) {
+            val opCode = OpCode.from(code[ip])
+            val operand = ip + 1
+            val next = ip + instructions.length(ip)
+            val generic = opCode.generic ?: opCode
+            when (generic) {
+                TRUE -> helper("pushTrue", "($VM)V")
+                FALSE -> helper("pushFalse", "($VM)V")
+                NIL -> helper("pushNil", "($VM)V")
+                CONST_INT -> helper("pushLong", "(${VM}J)V", instructions.constants[code[operand]] as Long)
+                CONST_FLOAT -> helper("pushDouble", "(${VM}D)V", instructions.constants[code[operand]] as Double)
+                CONST, CONST_ID -> helper("pushConst", "($VM${FRAME_DESC}I)V", code[operand])
+                POP -> helper("pop", "($VM)V")
+                POP_UNDER -> helper("popUnder", "(${VM}I)V", code[operand])
+                DUPLICATE -> helper("duplicate", "($VM)V")
+                SWAP -> helper("swap", "($VM)V")
+                SET_LOCAL -> helper("setLocal", "(${VM}I)V", code[operand])
+                GET_LOCAL -> helper("getLocal", "(${VM}I)V", code[operand])
+                SET_UPVALUE -> helper("setUpvalue", "(${VM}I)V", code[operand])
+                GET_UPVALUE -> helper("getUpvalue", "(${VM}I)V", code[operand])
+                SET_PROP, GET_PROP -> {
+                    helper(if (generic == SET_PROP) "setProp" else "getProp", "($VM${FRAME_DESC}I)V", operand)
+                    exitIfLeft(next)
+                }
+                UPDATE_PROP -> helper("updateProp", "($VM)V")
+                INVERT -> helper("invert", "($VM)V")
+                NEGATE -> helper("negate", "($VM)V")
+                ADD -> helper("add", "($VM${FRAME_DESC}I)V", operand)
+                SUBTRACT, MULTIPLY, DIVIDE, DIVIDE_INT, MOD, LT, LE, GE, GT ->
+                    helper("binaryOp", "($VM${FRAME_DESC}IL$OP_CODE;)V", operand, generic)
+                EQ -> helper("checkEquality", "($VM${FRAME_DESC}IL$OP_CODE;)V", operand, generic)
+                IS -> helper("checkIs", "($VM)V")
+                HAS -> {
+                    helper("has", "($VM)V")
+                    exitIfLeft(next)
+                }
+                PRINT -> helper("print", "($VM)V")
+                JUMP -> jump(code[operand])
+                JUMP_IF_FALSE, JUMP_IF_NIL, JUMP_IF_EXCEPTION -> {
+                    val predicate = when (generic) {
+                        JUMP_IF_FALSE -> "isFalsey"
+                        JUMP_IF_NIL -> "isNil"
+                        else -> "isException"
+                    }
+                    helper(predicate, "($VM)Z")
+                    val skip = CodeWriter.Label()
+                    out.jumpUnless(IFNE, skip)
+                    jump(code[operand])
+                    out.place(skip)
+                }
+                CALL -> {
+                    helper("call", "(${VM}I)V", code[operand])
+                    exitIfLeft(next)
+                }
+                INVOKE, SUPER_INVOKE -> {
+                    helper(if (generic == INVOKE) "invoke" else "invokeSuper", "($VM${FRAME_DESC}III)V",
+                            operand, code[operand], code[operand + 1])
+                    exitIfLeft(next)
+                }
+                CLOSURE, FIBER -> helper("closure", "($VM${FRAME_DESC}IZ)V", operand, generic == FIBER)
+                CLOSE_UPVALUE -> helper("closeUpvalue", "($VM)V")
+                SELF_FN -> helper("selfFn", "($VM$FRAME_DESC)V")
+                ADD_LOCALS -> helper("addLocals", "(${VM}II)V", code[operand], code[operand + 1])
+                LT_LOCAL_INT_JUMP_IF_FALSE -> {
+                    helper("ltLocalInt", "(${VM}IJ)Z", code[operand],
+                            instructions.constants[code[operand + 1]] as Long)
+                    val skip = CodeWriter.Label()
+                    out.jumpUnless(IFNE, skip)
+                    jump(code[operand + 2])
+                    out.place(skip)
+                }
+                GET_PROP_ID -> {
+                    helper("getPropId", "($VM${FRAME_DESC}II)V", operand, code[operand])
+                    exitIfLeft(next)
+                }
+                INVOKE_LOCAL -> {
+                    helper("invokeLocal", "($VM${FRAME_DESC}IIII)V",
+                            operand, code[operand], code[operand + 1], code[operand + 2])
+                    exitIfLeft(next)
+                }
+                POP_TWO -> helper("popTwo", "($VM)V")
+                else -> exit(ip, INTERPRET) // Leave it to the Vm
+            }
+        }
+
+        private fun push(value: Int) {
+            when (value) {
+                in -1..5 -> out.op(ICONST_0 + value)
+                in Byte.MIN_VALUE..Byte.MAX_VALUE -> {
+                    out.op(BIPUSH)
+                    out.op(value and 0xFF)
+                }
+                in Short.MIN_VALUE..Short.MAX_VALUE -> out.op(SIPUSH, value)
+                else -> out.op(LDC_W, writer.int(value))
+            }
+        }
+
+        /**
+         * Calls a [CompiledCode] helper, passing it the Vm, the frame if [descriptor] says so, and constant operands.
+         */
+        private fun helper(name: String, descriptor: String, vararg operands: Any) {
+            out.op(ALOAD_0)
+            out.op(ALOAD_1)
+            if (descriptor.startsWith("($VM$FRAME_DESC")) {
+                out.op(ALOAD_2)
+            }
+            for (operand in operands) {
+                when (operand) {
+                    is Int -> push(operand)
+                    is Boolean -> push(if (operand) 1 else 0)
+                    is Long -> out.op(LDC2_W, writer.long(operand))
+                    is Double -> out.op(LDC2_W, writer.double(operand))
+                    is OpCode -> out.op(GETSTATIC, writer.fieldRef(OP_CODE, operand.name, "L$OP_CODE;"))
+                }
+            }
+            out.op(INVOKEVIRTUAL, writer.methodRef(BASE, name, descriptor))
+        }
+
+        private fun jump(location: Int) {
+            when (location) {
+                in chunkStart until chunkEnd -> out.goTo(labels[location])
+                chunkEnd -> out.goTo(chunkEndLabel)
+                else -> exit(location, CONTINUE)
+            }
+        }
+
+        // Returns to the Vm if the instruction that was just executed pushed a frame or switched fibers
+        private fun exitIfLeft(next: Int) {
+            helper("left", "($VM$FRAME_DESC)Z")
+            val stay = CodeWriter.Label()
+            out.jumpUnless(IFNE, stay)
+            exit(next, LEFT)
+            out.place(stay)
+        }
+
+        /**
+         * Returns from the chunk with [result], leaving the frame's ip at [ip].
+         */
+        private fun exit(ip: Int, result: Int) {
+            out.op(ALOAD_2)
+            push(ip)
+            out.op(INVOKEVIRTUAL, writer.methodRef(FRAME, "setIp", "(I)V"))
+            out.op(ICONST_0 + result)
+            out.op(IRETURN)
+        }
+
+        private fun chunkName(start: Int) = "chunk$start"
+    }
+
+    private class Loader(parent: ClassLoader) : ClassLoader(parent) {
+        fun define(name: String, bytes: ByteArray): Class<*> = defineClass(name, bytes, 0, bytes.size)
+    }
+
+    companion object {
+        const val INVOCATION_THRESHOLD = 1000
+        const val BACK_EDGE_THRESHOLD = 10000
+
+        private const val PACKAGE = "net/globulus/simi/warp/jit"
+        private const val BASE = "$PACKAGE/CompiledCode"
+        private const val FRAME = "net/globulus/simi/warp/CallFrame"
+        private const val OP_CODE = "net/globulus/simi/warp/OpCode"
+        private const val VM = "Lnet/globulus/simi/warp/Vm;"
+        private const val FRAME_DESC = "L$FRAME;"
+        private const val CHUNK_DESC = "($VM$FRAME_DESC)I"
+        private const val MAX_STACK = 8
+        private const val MAX_CHUNK_SIZE = 7000 // HotSpot's limit is 8000, leaves room for a chunk's entry and exit
+
+        // Results of chunk methods
+        private const val CONTINUE = 0 // the frame's ip is set to an instruction in another chunk
+        private const val INTERPRET = 1 // the frame's ip is set to an instruction the Vm needs to execute
+        private const val LEFT = 2 // a call or a fiber switch moved on to another frame
+    }
+}
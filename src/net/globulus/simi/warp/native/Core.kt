@@ -5,8 +5,8 @@ import net.globulus.simi.warp.*
 
 object Core : NativeModule {
     val keys = NativeFunction(0) {
-        val instance = it[0] as Instance
-        ListInstance(false, instance.fields.keys.toMutableList())
+        val instance = instanceValue(it)
+        newList(false, instance.fields.keys.toMutableList())
     }
 
     val listIterate = NativeFunction(0) {
@@ -29,36 +29,36 @@ object Core : NativeModule {
                 override fun resolve(funcName: String): NativeFunction? {
                     return when (funcName) {
                         "size" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
+                            val instance = instanceValue(it)
                             instance.fields.size.toLong()
                         }
                         "keys" -> keys
                         "values" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
-                            ListInstance(false, instance.fields.values.toMutableList())
+                            val instance = instanceValue(it)
+                            newList(false, instance.fields.values.toMutableList())
                         }
                         "zip" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
-                            val zipped = instance.zipped()
-                            Vm.newObject {
+                            val instance = instanceValue(it)
+                            val zipped = zipped(instance)
+                            newObject {
                                 fields[Constants.ITERATE] = NativeFunction(0) {
-                                    listIterate.func(listOf(zipped))
+                                    listIterate.func(this, listOf(zipped))
                                 }
                             }
                         }
                         "zipped" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
-                            instance.zipped()
+                            val instance = instanceValue(it)
+                            zipped(instance)
                         }
                         "isEmpty" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
+                            val instance = instanceValue(it)
                             instance.fields.isEmpty()
                         }
                         Constants.ITERATE -> NativeFunction(0) {
-                            listIterate.func(listOf(keys.func(it)))
+                            listIterate.func(this, listOf(keys.func(this, it)))
                         }
                         "clear" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
+                            val instance = instanceValue(it)
                             if (instance.mutable) {
                                 instance.fields.clear()
                                 instance
@@ -67,12 +67,12 @@ object Core : NativeModule {
                             }
                         }
                         "lock" -> NativeFunction(0) {
-                            val instance = it[0] as Instance
+                            val instance = instanceValue(it)
                             instance.mutable = false
                             instance
                         }
                         "merge" -> NativeFunction(1) {
-                            val instance = it[0] as Instance
+                            val instance = instanceValue(it)
                             if (instance.mutable) {
                                 val from = it[1] as Instance
                                 instance.fields.putAll(from.fields)
@@ -89,16 +89,16 @@ object Core : NativeModule {
                 override fun resolve(funcName: String): NativeFunction? {
                     return when (funcName) {
                         Constants.INIT -> NativeFunction(0) {
-                            ListInstance(true, null)
+                            newList(true, null)
                         }
                         Constants.GET -> NativeFunction(1) {
                             val instance = it[0] as ListInstance
                             when (val key = it[1]) {
                                 is Long -> instance[key.toInt()]
-                                is String -> getRawProp(instance, key)
+                                is String -> getProp(instance, key)
                                 is Instance -> {
                                     when (key.klass) {
-                                        Vm.declaredClasses[Constants.CLASS_RANGE] -> instance.sublist(key.fields["from"] as Long, key.fields["to"] as Long)
+                                        declaredClasses[Constants.CLASS_RANGE] -> instance.sublist(key.fields["from"] as Long, key.fields["to"] as Long)
                                         else -> null
                                     }
                                 }
@@ -156,7 +156,7 @@ object Core : NativeModule {
                         Constants.ITERATE -> listIterate
                         "sorted" -> NativeFunction(0) {
                             val instance = it[0] as ListInstance
-                            ListInstance(true, instance.items.sortedWith(Comparator { o1, o2 ->
+                            newList(true, instance.items.sortedWith(Comparator { o1, o2 ->
                                 if (o1 is String && o2 is String) {
                                     o1.compareTo(o2)
                                 } else {
@@ -170,7 +170,7 @@ object Core : NativeModule {
                         }
                         "distinct" -> NativeFunction(0) {
                             val instance = it[0] as ListInstance
-                            ListInstance(true, instance.items.distinct().toMutableList())
+                            newList(true, instance.items.distinct().toMutableList())
                         }
                         else -> null
                     }
@@ -180,14 +180,13 @@ object Core : NativeModule {
                 override fun resolve(funcName: String): NativeFunction? {
                     return when (funcName) {
                         Constants.GET -> NativeFunction(1) {
-                            val instance = it[0] as Instance
-                            val string = instance.fields[Constants.PRIVATE] as String
+                            val string = stringValue(it)
                             when (val key = it[1]) {
                                 is Long -> string[key.toInt()].toString()
-                                is String -> getRawProp(instance, key)
+                                is String -> getProp(it[0]!!, key)
                                 is Instance -> {
                                     when (key.klass) {
-                                        Vm.declaredClasses[Constants.CLASS_RANGE] ->
+                                        declaredClasses[Constants.CLASS_RANGE] ->
                                             string.substring((key.fields["from"] as Long).toInt(), (key.fields["to"] as Long).toInt())
                                         else -> null
                                     }
@@ -228,10 +227,10 @@ object Core : NativeModule {
                         "findAllRegex" -> NativeFunction(1) {
                             val string = stringValue(it)
                             val regex = Regex(it[1] as String)
-                            ListInstance(true, regex.findAll(string).map { result ->
-                                Vm.newObject {
+                            newList(true, regex.findAll(string).map { result ->
+                                newObject {
                                     fields["value"] = result.value
-                                    fields["range"] = Vm.newInstance("Range") {
+                                    fields["range"] = newInstance("Range") {
                                         fields["from"] = result.range.first.toLong()
                                         fields["to"] = result.range.last.toLong()
                                     }
@@ -259,11 +258,11 @@ object Core : NativeModule {
                             string.split(delimiter).toSimiList()
                         }
                         "builder" -> NativeFunction(0) {
-                            Vm.newObject {
+                            newObject {
                                 val builder = StringBuilder()
                                 fields["add"] = NativeFunction(1) {
                                     builder.append(it[1])
-                                    this
+                                    this@newObject
                                 }
                                 fields["build"] = NativeFunction(0) {
                                     builder.toString()
@@ -274,24 +273,62 @@ object Core : NativeModule {
                     }
                 }
 
-                fun stringValue(args: List<Any?>) = (args[0] as Instance).fields[Constants.PRIVATE] as String
+                // Methods are invoked on raw strings, but can still be called on boxed ones from Kotlin code
+                fun stringValue(args: List<Any?>) = args[0] as? String ?: (args[0] as Instance)[Constants.PRIVATE] as String
+            },
+            "Scheduler" to object : NativeClass {
+                override fun resolve(funcName: String): NativeFunc? {
+                    return when (funcName) {
+                        "spawn" -> NativeFunction(1) {
+                            when (val fiber = it[1]) {
+                                is Fiber -> {
+                                    if (fiber.state == Fiber.State.NEW && fiber.task == null) {
+                                        vm.scheduler.spawn(fiber)
+                                        fiber
+                                    } else {
+                                        illegalArgumentException("$fiber is already running.")
+                                    }
+                                }
+                                is Closure -> Fiber(fiber).also { f -> vm.scheduler.spawn(f) }
+                                else -> illegalArgumentException("Only fibers and functions can be spawned.")
+                            }
+                        }
+                        "sleep" -> AsyncNativeFunction(1) { args, callback ->
+                            val millis = (args[1] as? Number)?.toLong()
+                            if (millis != null) {
+                                vm.scheduler.schedule(millis, callback)
+                            } else {
+                                callback(illegalArgumentException("Sleep duration must be a number."))
+                            }
+                        }
+                        "join" -> AsyncNativeFunction(1) { args, callback ->
+                            val fiber = args[1] as? Fiber
+                            if (fiber?.task != null) {
+                                vm.scheduler.join(fiber, callback)
+                            } else {
+                                callback(illegalArgumentException("Only spawned fibers can be joined."))
+                            }
+                        }
+                        else -> null
+                    }
+                }
             }
     )
 
-    private fun iterator(next: () -> Any?): Instance {
-        return Vm.newObject {
+    private fun VmContext.iterator(next: () -> Any?): Instance {
+        return newObject {
             fields[Constants.NEXT] = NativeFunction(0) {
                 next()
             }
         }
     }
 
-    private fun Instance.zipped() = ListInstance(false,
-            fields.map { (k, v) -> ListInstance(false, mutableListOf(k, v)) }.toMutableList()
+    private fun VmContext.zipped(instance: Instance) = newList(false,
+            instance.fields.map { (k, v) -> newList(false, mutableListOf(k, v)) }.toMutableList()
     )
 
-    private fun getRawProp(instance: Instance, name: String): Any? {
-        Vm.instance?.getPropRaw(instance, name)
-        return Vm.instance?.pop()
-    }
+    /**
+     * Object methods can be invoked on raw Num, String and Function values, but work with instances.
+     */
+    private fun VmContext.instanceValue(args: List<Any?>) = args[0] as? Instance ?: box(args[0]!!)!!
 }
\ No newline at end of file
@@ -1,11 +1,17 @@
 package net.globulus.simi.warp.native
 
 import net.globulus.simi.warp.OptionalParamsFunc
+import net.globulus.simi.warp.VmContext
 
 interface NativeFunc : OptionalParamsFunc
 
+/*
+ * Native functions are invoked with the context of the Vm that called them as their receiver, which is what
+ * they use to create Simi objects and lists.
+ */
+
 class NativeFunction(override val arity: Int,
-                     val func: (args: List<Any?>) -> Any?
+                     val func: VmContext.(args: List<Any?>) -> Any?
 ) : NativeFunc {
     override var optionalParamsStart: Int = OptionalParamsFunc.DEFAULT_PARAMS_START
     override var defaultValues: Array<Any>? = null
@@ -16,7 +22,7 @@ class NativeFunction(override val arity: Int,
 }
 
 class AsyncNativeFunction(override val arity: Int,
-                          val func: (args: List<Any?>, callback: (Any?) -> Unit) -> Unit
+                          val func: VmContext.(args: List<Any?>, callback: (Any?) -> Unit) -> Unit
 ) : NativeFunc {
     override var optionalParamsStart: Int = OptionalParamsFunc.DEFAULT_PARAMS_START
     override var defaultValues: Array<Any>? = null
@@ -3,10 +3,16 @@ package net.globulus.simi.warp.native
 import net.globulus.simi.api.Constants
 import java.net.URL
 import java.net.URLClassLoader
+import java.util.*
 
+/**
+ * Native modules are shared by all the Vms in the JVM, which may load and resolve them concurrently.
+ */
 object NativeModuleLoader {
     private val classes = mutableMapOf<String, NativeClass>()
+    private val names = IdentityHashMap<NativeFunc, Pair<String, String>>()
 
+    @Synchronized
     fun load(path: String, moduleName: String, useCustomLoader: Boolean = false) {
         try {
             val apiClassName = getApiClassName(moduleName)
@@ -30,8 +36,19 @@ object NativeModuleLoader {
         }
     }
 
+    @Synchronized
     fun resolve(className: String, funcName: String): NativeFunc? {
-        return classes[className]?.resolve(funcName)
+        return classes[className]?.resolve(funcName)?.also {
+            names[it] = className to funcName
+        }
+    }
+
+    /**
+     * @return the class and function name [func] was resolved with
+     */
+    @Synchronized
+    internal fun nameOf(func: NativeFunc): Pair<String, String>? {
+        return names[func]
     }
 
     private fun getApiClassName(moduleName: String) = Constants.PACKAGE_SIMI_API + '.' + moduleName